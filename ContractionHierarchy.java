@@ -0,0 +1,511 @@
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Contraction Hierarchies over the road graph of a <code>GraphDB</code>. Preprocessing contracts
+ * the vertices one at a time, least important first, adding a shortcut between two neighbors of
+ * the contracted vertex whenever the path through it is the only shortest path between them.
+ * Queries then only ever move "upwards" to vertices contracted later, which makes them explore a
+ * tiny fraction of the graph regardless of route length.
+ * <p>
+ * The result is stored as an upward graph in compressed sparse row form: the upward edges of
+ * vertex <code>v</code> are the edges, original or shortcut, to the neighbors it still had when it
+ * was contracted. Each shortcut remembers the vertex it skips, so query results can be unpacked
+ * back into the original vertices.
+ */
+class ContractionHierarchy {
+    /**
+     * The maximum number of vertices a witness search may settle. A search that gives up early
+     * just adds a shortcut that might not have been needed.
+     */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    /** The quantity the edges are weighed by. */
+    private final Router.Metric metric;
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final double[] upWeights;
+    /** The vertex a shortcut skips, or -1 for an original edge. */
+    private final int[] upMiddles;
+
+    /* Working graph used during preprocessing only. */
+    private int[][] neighbors;
+    private double[][] weights;
+    private int[][] middles;
+    private int[] degree;
+    private boolean[] contracted;
+    private double[] witnessDistance;
+    private int[] witnessStamp;
+    private int witnessGeneration = 0;
+    private IndexedMinHeap witnessFringe;
+
+    /**
+     * Contracts the graph of <code>g</code> for <code>profile</code>, with its edges weighed by
+     * <code>metric</code>. Edges the profile may not use are left out.
+     *
+     * @param g       The frozen graph.
+     * @param profile The way of travelling.
+     * @param metric  The quantity to weigh edges by.
+     */
+    ContractionHierarchy(GraphDB g, Router.Profile profile, Router.Metric metric) {
+        this.metric = metric;
+        double[] edgeWeights = g.edgeWeights(profile, metric);
+        int n = g.vertexCount();
+        neighbors = new int[n][];
+        weights = new double[n][];
+        middles = new int[n][];
+        degree = new int[n];
+        contracted = new boolean[n];
+        witnessDistance = new double[n];
+        witnessStamp = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            int capacity = Math.max(1, g.edgeEnd(v) - g.firstEdge(v));
+            neighbors[v] = new int[capacity];
+            weights[v] = new double[capacity];
+            middles[v] = new int[capacity];
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                if (g.accessible(profile, e)) {
+                    addEdge(v, g.edgeTarget(e), edgeWeights[e], -1);
+                }
+            }
+        }
+
+        /* Contract in order of edge difference plus contracted neighbors, re-evaluating a vertex's
+         * priority lazily when it reaches the front of the queue. */
+        int[] contractedNeighbors = new int[n];
+        IndexedMinHeap order = new IndexedMinHeap(n);
+        witnessFringe = new IndexedMinHeap(n);
+        for (int v = 0; v < n; v += 1) {
+            order.add(v, priority(v, 0));
+        }
+        int[][] upNeighbors = new int[n][];
+        double[][] upEdgeWeights = new double[n][];
+        int[][] upEdgeMiddles = new int[n][];
+        while (!order.isEmpty()) {
+            int v = order.poll();
+            double current = priority(v, contractedNeighbors[v]);
+            if (!order.isEmpty() && current > order.peekKey()) {
+                order.add(v, current);
+                continue;
+            }
+            int live = 0;
+            upNeighbors[v] = new int[degree[v]];
+            upEdgeWeights[v] = new double[degree[v]];
+            upEdgeMiddles[v] = new int[degree[v]];
+            for (int i = 0; i < degree[v]; i += 1) {
+                if (!contracted[neighbors[v][i]]) {
+                    upNeighbors[v][live] = neighbors[v][i];
+                    upEdgeWeights[v][live] = weights[v][i];
+                    upEdgeMiddles[v][live] = middles[v][i];
+                    contractedNeighbors[neighbors[v][i]] += 1;
+                    live += 1;
+                }
+            }
+            upNeighbors[v] = Arrays.copyOf(upNeighbors[v], live);
+            upEdgeWeights[v] = Arrays.copyOf(upEdgeWeights[v], live);
+            upEdgeMiddles[v] = Arrays.copyOf(upEdgeMiddles[v], live);
+            contract(v, false);
+            contracted[v] = true;
+        }
+
+        upOffsets = new int[n + 1];
+        for (int v = 0; v < n; v += 1) {
+            upOffsets[v + 1] = upOffsets[v] + upNeighbors[v].length;
+        }
+        upTargets = new int[upOffsets[n]];
+        upWeights = new double[upOffsets[n]];
+        upMiddles = new int[upOffsets[n]];
+        for (int v = 0; v < n; v += 1) {
+            System.arraycopy(upNeighbors[v], 0, upTargets, upOffsets[v], upNeighbors[v].length);
+            System.arraycopy(upEdgeWeights[v], 0, upWeights, upOffsets[v],
+                    upNeighbors[v].length);
+            System.arraycopy(upEdgeMiddles[v], 0, upMiddles, upOffsets[v],
+                    upNeighbors[v].length);
+        }
+        neighbors = null;
+        weights = null;
+        middles = null;
+        degree = null;
+        contracted = null;
+        witnessDistance = null;
+        witnessStamp = null;
+        witnessFringe = null;
+    }
+
+    /**
+     * Returns the contraction priority of <code>v</code>: the number of shortcuts contracting it
+     * would add, minus the edges it would remove, plus the number of its neighbors that are
+     * already contracted, which spreads contraction evenly over the graph.
+     */
+    private double priority(int v, int contractedNeighbors) {
+        int live = 0;
+        for (int i = 0; i < degree[v]; i += 1) {
+            if (!contracted[neighbors[v][i]]) {
+                live += 1;
+            }
+        }
+        return contract(v, true) - live + contractedNeighbors;
+    }
+
+    /**
+     * Adds the shortcuts needed to contract <code>v</code>, or only counts them when
+     * <code>simulate</code> is set.
+     *
+     * @return The number of shortcuts needed.
+     */
+    private int contract(int v, boolean simulate) {
+        int shortcuts = 0;
+        for (int i = 0; i < degree[v]; i += 1) {
+            int u = neighbors[v][i];
+            if (contracted[u]) {
+                continue;
+            }
+            double maxCost = 0.0;
+            for (int j = i + 1; j < degree[v]; j += 1) {
+                if (!contracted[neighbors[v][j]]) {
+                    maxCost = Math.max(maxCost, weights[v][i] + weights[v][j]);
+                }
+            }
+            witnessSearch(u, v, maxCost);
+            for (int j = i + 1; j < degree[v]; j += 1) {
+                int w = neighbors[v][j];
+                if (contracted[w] || w == u) {
+                    continue;
+                }
+                double cost = weights[v][i] + weights[v][j];
+                if (witnessStamp[w] == witnessGeneration && witnessDistance[w] <= cost) {
+                    continue;
+                }
+                shortcuts += 1;
+                if (!simulate) {
+                    addEdge(u, w, cost, v);
+                    addEdge(w, u, cost, v);
+                }
+            }
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Runs a Dijkstra search from <code>source</code> over the uncontracted vertices other than
+     * <code>skip</code>, giving up past <code>maxCost</code> or after settling
+     * <code>WITNESS_SETTLE_LIMIT</code> vertices. Distances are left in
+     * <code>witnessDistance</code> for the vertices stamped with the current generation.
+     */
+    private void witnessSearch(int source, int skip, double maxCost) {
+        witnessGeneration += 1;
+        IndexedMinHeap fringe = witnessFringe;
+        fringe.clear();
+        witnessStamp[source] = witnessGeneration;
+        witnessDistance[source] = 0.0;
+        fringe.add(source, 0.0);
+        int settled = 0;
+        while (!fringe.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+            if (fringe.peekKey() > maxCost) {
+                return;
+            }
+            int v = fringe.poll();
+            settled += 1;
+            for (int i = 0; i < degree[v]; i += 1) {
+                int w = neighbors[v][i];
+                if (contracted[w] || w == skip) {
+                    continue;
+                }
+                double d = witnessDistance[v] + weights[v][i];
+                if (witnessStamp[w] != witnessGeneration || d < witnessDistance[w]) {
+                    witnessStamp[w] = witnessGeneration;
+                    witnessDistance[w] = d;
+                    fringe.addOrDecrease(w, d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the edge from <code>v</code> to <code>w</code> to the working graph, or lowers the
+     * weight of the existing one, so that each vertex keeps at most one edge per neighbor.
+     */
+    private void addEdge(int v, int w, double weight, int middle) {
+        if (v == w) {
+            return;
+        }
+        for (int i = 0; i < degree[v]; i += 1) {
+            if (neighbors[v][i] == w) {
+                if (weight < weights[v][i]) {
+                    weights[v][i] = weight;
+                    middles[v][i] = middle;
+                }
+                return;
+            }
+        }
+        if (degree[v] == neighbors[v].length) {
+            neighbors[v] = Arrays.copyOf(neighbors[v], degree[v] * 2);
+            weights[v] = Arrays.copyOf(weights[v], degree[v] * 2);
+            middles[v] = Arrays.copyOf(middles[v], degree[v] * 2);
+        }
+        neighbors[v][degree[v]] = w;
+        weights[v][degree[v]] = weight;
+        middles[v][degree[v]] = middle;
+        degree[v] += 1;
+    }
+
+    /**
+     * Returns the shortest path between two snapped points as a list of vertex IDs, or an empty
+     * list if there is none. Both searches only relax upward edges; since the hierarchy is built
+     * over undirected roads, the backward search uses the same upward graph. Each side stops once
+     * its smallest priority reaches the best route through a vertex both sides have settled.
+     */
+    List<Long> shortestPath(GraphDB g, GraphDB.Snap start, GraphDB.Snap destination) {
+        int n = upOffsets.length - 1;
+        SearchContext[] search = {SearchContext.forward(n), SearchContext.backward(n)};
+        SearchBudget budget = SearchBudget.current();
+        IndexedMinHeap[] fringe = {search[0].fringe(), search[1].fringe()};
+        GraphDB.Snap[] ends = {start, destination};
+        for (int side = 0; side < 2; side += 1) {
+            int[] seeds = {ends[side].fromVertex, ends[side].toVertex};
+            double[] seedDistances = {
+                ends[side].fromWeight(metric), ends[side].toWeight(metric)};
+            for (int i = 0; i < seeds.length; i += 1) {
+                if (seedDistances[i] < search[side].distance(seeds[i])) {
+                    search[side].reach(seeds[i], seedDistances[i], -1);
+                    fringe[side].addOrDecrease(seeds[i], seedDistances[i]);
+                }
+            }
+        }
+
+        double bestDistance = Double.MAX_VALUE;
+        int meetingVertex = -1;
+        while (!fringe[0].isEmpty() || !fringe[1].isEmpty()) {
+            int side;
+            if (fringe[1].isEmpty()) {
+                side = 0;
+            } else if (fringe[0].isEmpty()) {
+                side = 1;
+            } else {
+                side = fringe[0].peekKey() <= fringe[1].peekKey() ? 0 : 1;
+            }
+            if (fringe[side].peekKey() >= bestDistance) {
+                fringe[side].clear();
+                continue;
+            }
+            budget.charge();
+            int v = fringe[side].poll();
+            double distanceToV = search[side].distance(v);
+            if (distanceToV + search[1 - side].distance(v) < bestDistance) {
+                bestDistance = distanceToV + search[1 - side].distance(v);
+                meetingVertex = v;
+            }
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e += 1) {
+                int w = upTargets[e];
+                double newDistance = distanceToV + upWeights[e];
+                if (newDistance < search[side].distance(w)) {
+                    search[side].reach(w, newDistance, e);
+                    fringe[side].addOrDecrease(w, newDistance);
+                }
+            }
+        }
+        if (meetingVertex == -1) {
+            return new LinkedList<>();
+        }
+
+        /** Unpacks the forward half, then the backward half */
+        LinkedList<Long> shortestPathList = new LinkedList<>();
+        shortestPathList.add(g.vertexId(meetingVertex));
+        int copy = meetingVertex;
+        for (int e = search[0].parent(copy); e != -1; e = search[0].parent(copy)) {
+            int previous = sourceOf(e);
+            unpack(g, previous, copy, e, shortestPathList, true);
+            copy = previous;
+        }
+        copy = meetingVertex;
+        for (int e = search[1].parent(copy); e != -1; e = search[1].parent(copy)) {
+            int previous = sourceOf(e);
+            unpack(g, previous, copy, e, shortestPathList, false);
+            copy = previous;
+        }
+        return shortestPathList;
+    }
+
+    /**
+     * Buckets for many-to-many queries: for every vertex, the targets whose upward search
+     * reached it and at what distance.
+     */
+    static class Buckets {
+        private final int[] offsets;
+        private final int[] targets;
+        private final double[] distances;
+
+        private Buckets(int[] offsets, int[] targets, double[] distances) {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.distances = distances;
+        }
+    }
+
+    /**
+     * Runs a complete upward search from every target and files each vertex it settles into
+     * that vertex's bucket. Together with <code>distances</code>, this answers a whole distance
+     * matrix with one upward search per source and one per target.
+     *
+     * @param targets Points snapped onto road segments.
+     * @return The buckets of every vertex.
+     */
+    Buckets buckets(GraphDB.Snap[] targets) {
+        int n = upOffsets.length - 1;
+        int[][] spaces = new int[targets.length][];
+        double[][] spaceDistances = new double[targets.length][];
+        int[] offsets = new int[n + 1];
+        for (int t = 0; t < targets.length; t += 1) {
+            SearchContext search = SearchContext.backward(n);
+            spaces[t] = upwardSearch(targets[t], search);
+            spaceDistances[t] = new double[spaces[t].length];
+            for (int i = 0; i < spaces[t].length; i += 1) {
+                spaceDistances[t][i] = search.distance(spaces[t][i]);
+                offsets[spaces[t][i] + 1] += 1;
+            }
+        }
+        for (int v = 0; v < n; v += 1) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] bucketTargets = new int[offsets[n]];
+        double[] bucketDistances = new double[offsets[n]];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int t = 0; t < targets.length; t += 1) {
+            for (int i = 0; i < spaces[t].length; i += 1) {
+                int slot = next[spaces[t][i]]++;
+                bucketTargets[slot] = t;
+                bucketDistances[slot] = spaceDistances[t][i];
+            }
+        }
+        return new Buckets(offsets, bucketTargets, bucketDistances);
+    }
+
+    /**
+     * Fills <code>row</code> with the distance from <code>source</code> to every target the
+     * buckets were built for, or infinity where a target cannot be reached. The shortest route
+     * to each target passes through the highest vertex on it, which both the upward search from
+     * the source and the one from the target settle.
+     *
+     * @param source  A point snapped onto a road segment.
+     * @param buckets The buckets built by <code>buckets</code>.
+     * @param row     Receives the distances, indexed by target.
+     */
+    void distances(GraphDB.Snap source, Buckets buckets, double[] row) {
+        Arrays.fill(row, Double.POSITIVE_INFINITY);
+        SearchContext search = SearchContext.forward(upOffsets.length - 1);
+        for (int v : upwardSearch(source, search)) {
+            double distanceToV = search.distance(v);
+            for (int i = buckets.offsets[v]; i < buckets.offsets[v + 1]; i += 1) {
+                int t = buckets.targets[i];
+                row[t] = Math.min(row[t], distanceToV + buckets.distances[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs an upward search from both ends of a snapped segment until it runs out of vertices.
+     *
+     * @return The vertices the search settled; their distances are left in <code>search</code>.
+     */
+    private int[] upwardSearch(GraphDB.Snap from, SearchContext search) {
+        IndexedMinHeap fringe = search.fringe();
+        SearchBudget budget = SearchBudget.current();
+        int[] seeds = {from.fromVertex, from.toVertex};
+        double[] seedDistances = {from.fromWeight(metric), from.toWeight(metric)};
+        for (int i = 0; i < seeds.length; i += 1) {
+            if (seedDistances[i] < search.distance(seeds[i])) {
+                search.reach(seeds[i], seedDistances[i], -1);
+                fringe.addOrDecrease(seeds[i], seedDistances[i]);
+            }
+        }
+        int[] settled = new int[16];
+        int count = 0;
+        while (!fringe.isEmpty()) {
+            budget.charge();
+            int v = fringe.poll();
+            if (count == settled.length) {
+                settled = Arrays.copyOf(settled, count * 2);
+            }
+            settled[count] = v;
+            count += 1;
+            double distanceToV = search.distance(v);
+            for (int e = upOffsets[v]; e < upOffsets[v + 1]; e += 1) {
+                int w = upTargets[e];
+                double newDistance = distanceToV + upWeights[e];
+                if (newDistance < search.distance(w)) {
+                    search.reach(w, newDistance, e);
+                    fringe.addOrDecrease(w, newDistance);
+                }
+            }
+        }
+        return Arrays.copyOf(settled, count);
+    }
+
+    /**
+     * Returns the vertex whose upward edges include edge <code>e</code>.
+     */
+    private int sourceOf(int e) {
+        int v = Arrays.binarySearch(upOffsets, e);
+        if (v < 0) {
+            return -v - 2;
+        }
+        /* Skip vertices without upward edges, which share their offset with the next vertex. */
+        while (upOffsets[v + 1] == e) {
+            v += 1;
+        }
+        return v;
+    }
+
+    /**
+     * Adds the original vertices of upward edge <code>e</code> between <code>lower</code> and
+     * <code>upper</code> to the path, walking from <code>upper</code> down to <code>lower</code>
+     * and excluding <code>upper</code> itself. They are added to the front of the path if
+     * <code>atFront</code> and to the back otherwise. Shortcuts are expanded with an explicit
+     * stack of (from, to, edge) triples.
+     */
+    private void unpack(GraphDB g, int lower, int upper, int e, LinkedList<Long> path,
+                        boolean atFront) {
+        int[] stack = new int[48];
+        int size = 0;
+        stack[size++] = upper;
+        stack[size++] = lower;
+        stack[size++] = e;
+        while (size > 0) {
+            int edge = stack[--size];
+            int to = stack[--size];
+            int from = stack[--size];
+            int middle = upMiddles[edge];
+            if (middle == -1) {
+                if (atFront) {
+                    path.addFirst(g.vertexId(to));
+                } else {
+                    path.addLast(g.vertexId(to));
+                }
+                continue;
+            }
+            if (size + 6 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            /* Push the second half first so the first half is expanded first. */
+            stack[size++] = middle;
+            stack[size++] = to;
+            stack[size++] = edgeBetween(middle, to);
+            stack[size++] = from;
+            stack[size++] = middle;
+            stack[size++] = edgeBetween(middle, from);
+        }
+    }
+
+    /**
+     * Returns the upward edge from <code>lower</code> to <code>upper</code>.
+     */
+    private int edgeBetween(int lower, int upper) {
+        for (int e = upOffsets[lower]; e < upOffsets[lower + 1]; e += 1) {
+            if (upTargets[e] == upper) {
+                return e;
+            }
+        }
+        throw new IllegalStateException("Missing edge in contraction hierarchy.");
+    }
+}
@@ -2,8 +2,13 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -26,24 +31,78 @@ import java.util.Set;
  */
 public class GraphBuildingHandler extends DefaultHandler {
     /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
+     * Highway types open to cars unless tagged otherwise: the public roads and their links, but
+     * no service roads, tracks or paths.
      */
-
-
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = Set.of(
+    private static final Set<String> DRIVE_HIGHWAY_TYPES = Set.of(
             "motorway", "trunk", "primary", "secondary", "tertiary", "unclassified", "residential",
             "living_street", "motorway_link", "trunk_link", "primary_link", "secondary_link",
             "tertiary_link"
     );
+    /**
+     * Highway types open to bicycles unless tagged otherwise: everything but the motorways and
+     * trunk roads, plus cycleways, paths and tracks.
+     */
+    private static final Set<String> BIKE_HIGHWAY_TYPES = Set.of(
+            "primary", "secondary", "tertiary", "unclassified", "residential", "living_street",
+            "primary_link", "secondary_link", "tertiary_link", "service", "road", "track",
+            "cycleway", "path"
+    );
+    /**
+     * Highway types open to pedestrians unless tagged otherwise: everything but the motorways
+     * and trunk roads, plus footways, steps, pedestrian streets, paths and tracks.
+     */
+    private static final Set<String> WALK_HIGHWAY_TYPES = Set.of(
+            "primary", "secondary", "tertiary", "unclassified", "residential", "living_street",
+            "primary_link", "secondary_link", "tertiary_link", "service", "road", "track",
+            "footway", "pedestrian", "steps", "path"
+    );
+    /**
+     * The access tags that apply to each profile, most specific first. The first one a way has
+     * decides whether the profile may use it.
+     */
+    private static final Map<Router.Profile, List<String>> ACCESS_KEYS = Map.of(
+            Router.Profile.DRIVE, List.of("motorcar", "motor_vehicle", "vehicle", "access"),
+            Router.Profile.BIKE, List.of("bicycle", "vehicle", "access"),
+            Router.Profile.WALK, List.of("foot", "access")
+    );
+    /** Access tag values that close a way. */
+    private static final Set<String> NO_ACCESS = Set.of("no", "private", "use_sidepath");
+    /** Cycling speed in miles per hour, on any way open to bicycles. */
+    private static final double BIKE_SPEED = 12.0;
+    /** Walking speed in miles per hour, on any way open to pedestrians. */
+    private static final double WALK_SPEED = 3.0;
+    /**
+     * Speed in miles per hour assumed for a way of each highway type that has no usable maxspeed
+     * tag, roughly the usual limit for that class of road in California.
+     */
+    private static final Map<String, Double> DEFAULT_SPEEDS = Map.ofEntries(
+            Map.entry("motorway", 65.0), Map.entry("trunk", 55.0), Map.entry("primary", 40.0),
+            Map.entry("secondary", 35.0), Map.entry("tertiary", 30.0),
+            Map.entry("unclassified", 25.0), Map.entry("residential", 25.0),
+            Map.entry("living_street", 10.0), Map.entry("motorway_link", 45.0),
+            Map.entry("trunk_link", 35.0), Map.entry("primary_link", 30.0),
+            Map.entry("secondary_link", 30.0), Map.entry("tertiary_link", 25.0)
+    );
+    /** Speed assumed for a highway type missing from <code>DEFAULT_SPEEDS</code>. */
+    private static final double FALLBACK_SPEED = 25.0;
+    private static final double MILES_PER_KILOMETER = 0.621371;
+    /**
+     * A maxspeed value: a number, optionally followed by mph or km/h. OSM reads a bare number as
+     * km/h. A second value after a semicolon is ignored; any other unit, such as knots, does not
+     * match, so the way gets the default speed of its highway type.
+     */
+    private static final Pattern MAXSPEED = Pattern.compile(
+            "\\s*([0-9]+(?:\\.[0-9]+)?)\\s*(mph|km/h|kmh|kph)?\\s*(?:;.*)?");
     private String activeState = "";
     private final GraphDB g;
     private boolean wayValidity;
-    private static LinkedList<Long> lstOfConnectedNodes = new LinkedList<>();
-    private static long wayID = 0;
-    private static GraphDB.Edge edge = new GraphDB.Edge(0, new LinkedList<Long>(), null);
+    private LinkedList<Long> lstOfConnectedNodes = new LinkedList<>();
+    private long wayID = 0;
+    private String wayName;
+    private String highway;
+    private double maxspeed = Double.NaN;
+    private final Map<String, String> accessTags = new HashMap<>();
     private int ignore = 0;
 
     /**
@@ -94,6 +153,11 @@ public class GraphBuildingHandler extends DefaultHandler {
             /* Encountering a new <way...> tag. */
             activeState = "way";
             wayID = Long.parseLong(attributes.getValue("id"));
+            wayName = null;
+            wayValidity = false;
+            highway = null;
+            maxspeed = Double.NaN;
+            accessTags.clear();
 
             // System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
@@ -102,7 +166,6 @@ public class GraphBuildingHandler extends DefaultHandler {
             // System.out.println("Node id in this way: " + attributes.getValue("ref"));
             Long potentialNodeID = Long.parseLong(attributes.getValue("ref"));
             lstOfConnectedNodes.add(potentialNodeID);
-            edge = new GraphDB.Edge(wayID, lstOfConnectedNodes, null);
 
 
             /*
@@ -117,24 +180,19 @@ public class GraphBuildingHandler extends DefaultHandler {
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
             if (k.equals("maxspeed")) {
-                ignore = 0;
-
-                // System.out.println("Max Speed: " + v);
-
-                /*  */
-
+                maxspeed = parseMaxspeed(v);
             } else if (k.equals("highway")) {
                 // System.out.println("Highway type: " + v);
-                if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                    wayValidity = true;
-                } else {
-                    wayValidity = false;
-                }
-                /*
-                 * Hint: Set a "flag". */
+                highway = v;
+                /* Whether the way is kept depends on its access tags too, which may come later;
+                 * see endElement. */
+                wayValidity = true;
 
+            } else if (k.equals("access") || k.equals("motorcar") || k.equals("motor_vehicle")
+                    || k.equals("vehicle") || k.equals("bicycle") || k.equals("foot")) {
+                accessTags.put(k, v);
             } else if (k.equals("name")) {
-                ignore = 0;
+                wayName = v;
                 //System.out.println("Tag with k=" + k + ", v=" + v + ".");
             }
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
@@ -166,14 +224,15 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            if (wayValidity) {
-                g.addEdge(edge);
+            double[] speeds = wayValidity ? speeds() : null;
+            if (speeds != null) {
+                g.addEdge(new GraphDB.Edge(wayID, lstOfConnectedNodes, wayName, highway, maxspeed,
+                        speeds));
                 wayValidity = false;
                 lstOfConnectedNodes = new LinkedList<>();
             } else {
                 lstOfConnectedNodes = new LinkedList<>();
             }
-            //wayValidity = false;
             /* Done looking at a way. (Finished looking at the nodes, speeds, etc.) */
 
             /* Hint: If you have stored the possible connections for this way, here's your chance to
@@ -182,4 +241,81 @@ public class GraphBuildingHandler extends DefaultHandler {
             // System.out.println("Finishing a way...");
         }
     }
+
+    /**
+     * Returns the speed of each profile on the current way, indexed by profile ordinal, with 0
+     * for a profile that may not use it.
+     *
+     * @return The speeds in miles per hour, or <code>null</code> if no profile may use the way.
+     */
+    private double[] speeds() {
+        Router.Profile[] profiles = Router.Profile.values();
+        double[] speeds = new double[profiles.length];
+        boolean usable = false;
+        for (Router.Profile profile : profiles) {
+            if (!allowed(profile)) {
+                continue;
+            }
+            switch (profile) {
+                case DRIVE:
+                    speeds[profile.ordinal()] = Double.isNaN(maxspeed)
+                            ? DEFAULT_SPEEDS.getOrDefault(highway, FALLBACK_SPEED) : maxspeed;
+                    break;
+                case BIKE:
+                    speeds[profile.ordinal()] = BIKE_SPEED;
+                    break;
+                default:
+                    speeds[profile.ordinal()] = WALK_SPEED;
+                    break;
+            }
+            usable = true;
+        }
+        return usable ? speeds : null;
+    }
+
+    /**
+     * Returns whether <code>profile</code> may use the current way. The most specific access
+     * tag for the profile decides; the general access tag can only close a way, so that
+     * <code>access=yes</code> does not open a motorway to pedestrians. Without a deciding tag,
+     * the highway type does. A way without a highway tag is not a road for any profile.
+     */
+    private boolean allowed(Router.Profile profile) {
+        if (highway == null) {
+            return false;
+        }
+        Set<String> highwayTypes = profile == Router.Profile.DRIVE ? DRIVE_HIGHWAY_TYPES
+                : profile == Router.Profile.BIKE ? BIKE_HIGHWAY_TYPES : WALK_HIGHWAY_TYPES;
+        for (String key : ACCESS_KEYS.get(profile)) {
+            String value = accessTags.get(key);
+            if (value == null) {
+                continue;
+            }
+            if (NO_ACCESS.contains(value)) {
+                return false;
+            }
+            if (!key.equals("access")) {
+                return true;
+            }
+        }
+        return highwayTypes.contains(highway);
+    }
+
+    /**
+     * Returns the speed limit a maxspeed tag value gives, in miles per hour.
+     *
+     * @param value The value of a maxspeed tag, such as "25 mph" or "50".
+     * @return The speed in miles per hour, or NaN if the value is not a positive numeric speed
+     * in mph or km/h, such as "none", "signals" or "10 knots".
+     */
+    static double parseMaxspeed(String value) {
+        Matcher m = MAXSPEED.matcher(value);
+        if (!m.matches()) {
+            return Double.NaN;
+        }
+        double speed = Double.parseDouble(m.group(1));
+        if (!"mph".equals(m.group(2))) {
+            speed *= MILES_PER_KILOMETER;
+        }
+        return speed > 0 ? speed : Double.NaN;
+    }
 }
@@ -0,0 +1,325 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of a frozen <code>GraphDB</code>, so that a restart can skip the OSM XML parse.
+ * A snapshot is a short header followed by a sequence of length-prefixed primitive arrays, in the
+ * order that <code>GraphDB</code> writes them. The header records the format version and the
+ * length and modification time of the XML file the snapshot was built from; a snapshot whose
+ * header does not match is considered stale and ignored. Tables derived from the graph, such as
+ * the landmark distances, are stored in the same format in files of their own.
+ * <p>
+ * Snapshots are read eagerly: every array is copied into the heap through one buffered stream,
+ * decoding a chunk at a time, so loading costs one sequential pass over the file. Each length
+ * prefix is checked against the rest of the file before its array is allocated.
+ */
+class GraphSnapshot {
+    /**
+     * File name suffix appended to the OSM XML path to find its snapshot.
+     */
+    static final String SUFFIX = ".snapshot";
+    /**
+     * Bump whenever <code>GraphDB</code> changes what it writes.
+     */
+    static final int VERSION = 9;
+    private static final int MAGIC = 0x424D4744;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+
+    /**
+     * Opens the snapshot at <code>snapshotFile</code> if it exists and was built from the current
+     * version of <code>sourceFile</code> by the current snapshot format. If the source file is
+     * missing, any snapshot with a matching format is accepted.
+     *
+     * @param sourceFile   The OSM XML file the graph is built from.
+     * @param snapshotFile The snapshot file.
+     * @return A <code>Reader</code> positioned at the first array, or <code>null</code> if there is
+     * no usable snapshot.
+     * @throws IOException If the snapshot exists but cannot be read.
+     */
+    static Reader open(File sourceFile, File snapshotFile) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+            continue;
+        }
+        header.flip();
+        boolean usable = header.remaining() == HEADER_BYTES
+                && header.getInt() == MAGIC
+                && header.getInt() == VERSION;
+        if (usable && sourceFile.isFile()) {
+            usable = header.getLong() == sourceFile.length()
+                    && header.getLong() == sourceFile.lastModified();
+        }
+        if (!usable) {
+            channel.close();
+            return null;
+        }
+        try {
+            return new Reader(channel, HEADER_BYTES);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a writer for a new snapshot of <code>sourceFile</code>. The snapshot is written to
+     * a temporary file and only moved to <code>snapshotFile</code> by <code>commit</code>, so a
+     * reader never sees a partially written snapshot.
+     *
+     * @param sourceFile   The OSM XML file the graph was built from.
+     * @param snapshotFile The snapshot file.
+     * @return A <code>Writer</code> that has already written the header.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    static Writer create(File sourceFile, File snapshotFile) throws IOException {
+        File parent = snapshotFile.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(snapshotFile.getName(), ".tmp", parent);
+        Writer writer = new Writer(temp, snapshotFile);
+        writer.out.writeInt(MAGIC);
+        writer.out.writeInt(VERSION);
+        writer.out.writeLong(sourceFile.length());
+        writer.out.writeLong(sourceFile.lastModified());
+        return writer;
+    }
+
+    /**
+     * Writes length-prefixed primitive arrays in big-endian order.
+     */
+    static class Writer implements Closeable {
+        private final File temp;
+        private final File target;
+        private final DataOutputStream out;
+        private boolean committed = false;
+
+        private Writer(File temp, File target) throws IOException {
+            this.temp = temp;
+            this.target = target;
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        }
+
+        void writeLongs(long[] values) throws IOException {
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        }
+
+        void writeInts(int[] values) throws IOException {
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        void writeDoubles(double[] values) throws IOException {
+            out.writeInt(values.length);
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+
+        void writeFloats(float[] values) throws IOException {
+            out.writeInt(values.length);
+            for (float value : values) {
+                out.writeFloat(value);
+            }
+        }
+
+        void writeShorts(short[] values) throws IOException {
+            out.writeInt(values.length);
+            for (short value : values) {
+                out.writeShort(value);
+            }
+        }
+
+        void writeBytes(byte[] values) throws IOException {
+            out.writeInt(values.length);
+            out.write(values);
+        }
+
+        /**
+         * Writes the strings as an array of end offsets followed by their concatenated UTF-8
+         * bytes, so that reading them back takes two bulk reads however many strings there are.
+         */
+        void writeStrings(String[] values) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int[] ends = new int[values.length];
+            for (int i = 0; i < values.length; i += 1) {
+                bytes.write(values[i].getBytes(StandardCharsets.UTF_8));
+                ends[i] = bytes.size();
+            }
+            writeInts(ends);
+            writeBytes(bytes.toByteArray());
+        }
+
+        /**
+         * Flushes the snapshot and atomically replaces the target file with it.
+         *
+         * @throws IOException If the snapshot cannot be written or moved into place.
+         */
+        void commit() throws IOException {
+            out.close();
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+    }
+
+    /**
+     * Reads the arrays written by a <code>Writer</code>, in the same order, through one buffered
+     * stream. Each array is decoded in bulk a chunk at a time.
+     */
+    static class Reader implements Closeable {
+        /** The most bytes decoded at once. */
+        private static final int CHUNK_BYTES = 1 << 16;
+
+        private final DataInputStream in;
+        private final byte[] chunk = new byte[CHUNK_BYTES];
+        private long remaining;
+
+        private Reader(FileChannel channel, long position) throws IOException {
+            this.remaining = channel.size() - position;
+            channel.position(position);
+            this.in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), CHUNK_BYTES));
+        }
+
+        long[] readLongs() throws IOException {
+            long[] values = new long[readLength(Long.BYTES)];
+            read(values.length, Long.BYTES,
+                    (buffer, offset, count) -> buffer.asLongBuffer().get(values, offset, count));
+            return values;
+        }
+
+        int[] readInts() throws IOException {
+            int[] values = new int[readLength(Integer.BYTES)];
+            read(values.length, Integer.BYTES,
+                    (buffer, offset, count) -> buffer.asIntBuffer().get(values, offset, count));
+            return values;
+        }
+
+        double[] readDoubles() throws IOException {
+            double[] values = new double[readLength(Double.BYTES)];
+            read(values.length, Double.BYTES,
+                    (buffer, offset, count) -> buffer.asDoubleBuffer().get(values, offset, count));
+            return values;
+        }
+
+        float[] readFloats() throws IOException {
+            float[] values = new float[readLength(Float.BYTES)];
+            read(values.length, Float.BYTES,
+                    (buffer, offset, count) -> buffer.asFloatBuffer().get(values, offset, count));
+            return values;
+        }
+
+        short[] readShorts() throws IOException {
+            short[] values = new short[readLength(Short.BYTES)];
+            read(values.length, Short.BYTES,
+                    (buffer, offset, count) -> buffer.asShortBuffer().get(values, offset, count));
+            return values;
+        }
+
+        byte[] readBytes() throws IOException {
+            byte[] values = new byte[readLength(1)];
+            read(values.length, 1, (buffer, offset, count) -> buffer.get(values, offset, count));
+            return values;
+        }
+
+        String[] readStrings() throws IOException {
+            int[] ends = readInts();
+            byte[] bytes = readBytes();
+            String[] values = new String[ends.length];
+            int start = 0;
+            for (int i = 0; i < values.length; i += 1) {
+                if (ends[i] < start || ends[i] > bytes.length) {
+                    throw new IOException("Corrupt snapshot: bad string offsets.");
+                }
+                values[i] = new String(bytes, start, ends[i] - start, StandardCharsets.UTF_8);
+                start = ends[i];
+            }
+            return values;
+        }
+
+        /**
+         * Reads the length prefix of an array of elements <code>width</code> bytes wide, checking
+         * that the array fits in the rest of the file before anything is allocated for it.
+         */
+        private int readLength(int width) throws IOException {
+            take(Integer.BYTES);
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot: negative array length.");
+            }
+            take((long) length * width);
+            return length;
+        }
+
+        /**
+         * Counts <code>bytes</code> as read, failing if the file does not have that many left.
+         */
+        private void take(long bytes) throws IOException {
+            if (bytes > remaining) {
+                throw new IOException("Corrupt snapshot: unexpected end of file.");
+            }
+            remaining -= bytes;
+        }
+
+        /**
+         * Reads <code>count</code> elements <code>width</code> bytes wide, passing them to
+         * <code>sink</code> a chunk at a time.
+         */
+        private void read(int count, int width, ChunkSink sink) throws IOException {
+            int perChunk = CHUNK_BYTES / width;
+            for (int offset = 0; offset < count; offset += perChunk) {
+                int n = Math.min(perChunk, count - offset);
+                in.readFully(chunk, 0, n * width);
+                sink.accept(ByteBuffer.wrap(chunk, 0, n * width), offset, n);
+            }
+        }
+
+        /**
+         * Decodes a chunk of big-endian elements into an array from <code>offset</code> on.
+         */
+        @FunctionalInterface
+        private interface ChunkSink {
+            void accept(ByteBuffer buffer, int offset, int count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
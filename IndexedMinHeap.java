@@ -0,0 +1,196 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A d-ary min-heap of int items in [0, capacity) keyed by doubles, with an index from each item to
+ * its position so that an item can be looked up and have its key lowered in place. Searches use it
+ * with dense vertex indices as items: a vertex is in the heap at most once, so relaxing an edge
+ * never allocates and the heap only ever holds the current fringe.
+ * <p>
+ * Items and keys are kept in parallel primitive arrays. A 4-ary layout keeps the heap shallow and
+ * the children of a position in one cache line, which is cheaper for searches that lower keys far
+ * more often than they remove the minimum.
+ */
+class IndexedMinHeap {
+    private static final int ARITY = 4;
+
+    private int[] items;
+    private double[] keys;
+    /** The position of each item in <code>items</code>, or -1 if it is not in the heap. */
+    private final int[] positions;
+    private int size = 0;
+
+    /**
+     * Creates an empty heap for items in [0, capacity).
+     *
+     * @param capacity One more than the largest item the heap will hold.
+     */
+    IndexedMinHeap(int capacity) {
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+        items = new int[16];
+        keys = new double[16];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the largest item plus one that this heap can hold.
+     */
+    int capacity() {
+        return positions.length;
+    }
+
+    boolean contains(int item) {
+        return positions[item] >= 0;
+    }
+
+    /**
+     * Returns the key of <code>item</code>, which must be in the heap.
+     */
+    double key(int item) {
+        return keys[positions[item]];
+    }
+
+    /**
+     * Returns the item with the smallest key without removing it.
+     *
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    int peek() {
+        if (size == 0) {
+            throw new NoSuchElementException("The heap is empty.");
+        }
+        return items[0];
+    }
+
+    /**
+     * Returns the smallest key in the heap.
+     *
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    double peekKey() {
+        if (size == 0) {
+            throw new NoSuchElementException("The heap is empty.");
+        }
+        return keys[0];
+    }
+
+    /**
+     * Adds <code>item</code>, which must not already be in the heap, with the given key.
+     */
+    void add(int item, double key) {
+        if (positions[item] >= 0) {
+            throw new IllegalArgumentException("Item " + item + " is already in the heap.");
+        }
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        size += 1;
+        siftUp(size - 1, item, key);
+    }
+
+    /**
+     * Lowers the key of <code>item</code>, which must be in the heap, to <code>key</code>. A key
+     * that is not lower than the current one is ignored.
+     */
+    void decreaseKey(int item, double key) {
+        int i = positions[item];
+        if (i < 0) {
+            throw new IllegalArgumentException("Item " + item + " is not in the heap.");
+        }
+        if (key < keys[i]) {
+            siftUp(i, item, key);
+        }
+    }
+
+    /**
+     * Adds <code>item</code> with the given key, or lowers its key if it is already in the heap.
+     */
+    void addOrDecrease(int item, double key) {
+        if (positions[item] >= 0) {
+            decreaseKey(item, key);
+        } else {
+            add(item, key);
+        }
+    }
+
+    /**
+     * Removes and returns the item with the smallest key.
+     *
+     * @throws NoSuchElementException If the heap is empty.
+     */
+    int poll() {
+        int top = peek();
+        positions[top] = -1;
+        size -= 1;
+        if (size > 0) {
+            siftDown(0, items[size], keys[size]);
+        }
+        return top;
+    }
+
+    /**
+     * Removes every item. Takes time proportional to the number of items in the heap, not to its
+     * capacity.
+     */
+    void clear() {
+        for (int i = 0; i < size; i += 1) {
+            positions[items[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /**
+     * Moves the hole at position <code>i</code> up until <code>item</code> fits in it.
+     */
+    private void siftUp(int i, int item, double key) {
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(i, items[parent], keys[parent]);
+            i = parent;
+        }
+        place(i, item, key);
+    }
+
+    /**
+     * Moves the hole at position <code>i</code> down until <code>item</code> fits in it.
+     */
+    private void siftDown(int i, int item, double key) {
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int smallest = first;
+            int last = Math.min(first + ARITY, size);
+            for (int child = first + 1; child < last; child += 1) {
+                if (keys[child] < keys[smallest]) {
+                    smallest = child;
+                }
+            }
+            if (keys[smallest] >= key) {
+                break;
+            }
+            place(i, items[smallest], keys[smallest]);
+            i = smallest;
+        }
+        place(i, item, key);
+    }
+
+    private void place(int i, int item, double key) {
+        items[i] = item;
+        keys[i] = key;
+        positions[item] = i;
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.Arrays;
+
+/**
+ * The part of the road network reachable from a point within a distance or travel time budget:
+ * the vertices themselves, and an outline of the area covered by the roads that can be reached.
+ * <p>
+ * The outline is a grid-cell polygon. The plane is divided into square cells, every cell that a
+ * reachable stretch of road passes through is marked, and the boundary of the marked cells is
+ * traced into closed rings. Roads are followed up to the exact point where the budget runs out,
+ * so a long road leaving the area does not stretch the outline to its far end. Outer rings wind
+ * counterclockwise and holes clockwise.
+ */
+class Isochrone {
+    /**
+     * The default number of cells across the budget radius, which for a travel time budget is
+     * the distance covered at the fastest speed of any road.
+     */
+    static final int DEFAULT_CELLS_PER_BUDGET = 32;
+    /**
+     * The most cells allowed across the budget radius, which bounds the work and the size of the
+     * outline for a tiny cell size.
+     */
+    private static final int MAX_CELLS_PER_BUDGET = 512;
+
+    /** The NodeIDs of the reachable vertices, nearest first. */
+    final long[] vertices;
+    /** The rings of the outline, each a closed list of {longitude, latitude} pairs. */
+    final double[][][] rings;
+
+    /* Grid of cells with its origin at the starting point. */
+    private final double originLon;
+    private final double originLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final double sampleMiles;
+    private long[] cells = new long[64];
+    private int cellCount = 0;
+
+    /**
+     * Computes the area reachable from the given coordinate.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param lon       The longitude of the starting coordinate.
+     * @param lat       The latitude of the starting coordinate.
+     * @param budget    The largest weight of a route to travel, in miles or seconds.
+     * @param metric    The quantity the budget is in.
+     * @param profile   The way of travelling.
+     * @param cellMiles The side of a grid cell in miles, or 0 for the default.
+     */
+    Isochrone(GraphDB g, double lon, double lat, double budget, Router.Metric metric,
+              Router.Profile profile, double cellMiles) {
+        double perMile = g.weightPerMile(profile, metric);
+        double radius = perMile > 0 ? budget / perMile : 0.0;
+        if (cellMiles <= 0) {
+            cellMiles = radius / DEFAULT_CELLS_PER_BUDGET;
+        }
+        cellMiles = Math.max(cellMiles, radius / MAX_CELLS_PER_BUDGET);
+        if (cellMiles <= 0) {
+            cellMiles = 1.0 / MAX_CELLS_PER_BUDGET;
+        }
+        originLon = lon;
+        originLat = lat;
+        cellLon = cellMiles / GraphDB.greatCircle(lon, lat, lon + 1, lat);
+        cellLat = cellMiles / GraphDB.greatCircle(lon, lat, lon, lat + 1);
+        sampleMiles = cellMiles / 2;
+
+        long[][] reached = {new long[64]};
+        int[] reachedCount = {0};
+        double[] weights = g.edgeWeights(profile, metric);
+        GraphDB.Snap start = Router.reachable(g, lon, lat, budget, metric, profile, (v, spent) -> {
+            if (reachedCount[0] == reached[0].length) {
+                reached[0] = Arrays.copyOf(reached[0], reachedCount[0] * 2);
+            }
+            reached[0][reachedCount[0]] = g.vertexId(v);
+            reachedCount[0] += 1;
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                double length = g.edgeLength(e);
+                markRoad(g.vertexLon(v), g.vertexLat(v), g.vertexLon(w), g.vertexLat(w),
+                        length, length * reachable(weights[e], budget - spent));
+            }
+        });
+        /* The stretch of the starting segment between the snapped point and its ends. */
+        markRoad(start.lon, start.lat, g.vertexLon(start.fromVertex),
+                g.vertexLat(start.fromVertex), start.fromDistance,
+                start.fromDistance * reachable(start.fromWeight(metric), budget));
+        markRoad(start.lon, start.lat, g.vertexLon(start.toVertex),
+                g.vertexLat(start.toVertex), start.toDistance,
+                start.toDistance * reachable(start.toWeight(metric), budget));
+        vertices = Arrays.copyOf(reached[0], reachedCount[0]);
+        rings = traceRings();
+    }
+
+    /**
+     * Returns the fraction of a stretch of road of the given weight that can be traveled with
+     * <code>remaining</code> left of the budget.
+     */
+    private static double reachable(double weight, double remaining) {
+        return weight > remaining ? remaining / weight : 1.0;
+    }
+
+    /**
+     * Marks the cells along the first <code>reach</code> miles of the straight road from
+     * (<code>lon0</code>, <code>lat0</code>) to (<code>lon1</code>, <code>lat1</code>), which is
+     * <code>length</code> miles long. The road is sampled at half a cell apart, so no cell it
+     * passes through is skipped by more than a corner.
+     */
+    private void markRoad(double lon0, double lat0, double lon1, double lat1,
+                          double length, double reach) {
+        int steps = (int) Math.ceil(reach / sampleMiles);
+        for (int k = 0; k <= steps; k += 1) {
+            double t = length > 0 && steps > 0 ? reach * k / steps / length : 0.0;
+            mark(lon0 + (lon1 - lon0) * t, lat0 + (lat1 - lat0) * t);
+        }
+    }
+
+    private void mark(double lon, double lat) {
+        int cx = (int) Math.floor((lon - originLon) / cellLon);
+        int cy = (int) Math.floor((lat - originLat) / cellLat);
+        long key = key(cx, cy);
+        if (cellCount > 0 && cells[cellCount - 1] == key) {
+            return;
+        }
+        if (cellCount == cells.length) {
+            cells = Arrays.copyOf(cells, cellCount * 2);
+        }
+        cells[cellCount] = key;
+        cellCount += 1;
+    }
+
+    /**
+     * Packs a pair of grid coordinates into one long.
+     */
+    private static long key(int i, int j) {
+        return (long) i << 32 | (j & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Traces the boundary of the marked cells. Every side between a marked and an unmarked cell
+     * is a boundary edge, directed so that the marked cell is on its left. Starting from an
+     * unused edge, a ring follows unused edges, turning left where two are possible, until it is
+     * back at its first corner.
+     */
+    private double[][][] traceRings() {
+        Arrays.sort(cells, 0, cellCount);
+        int unique = 0;
+        for (int i = 0; i < cellCount; i += 1) {
+            if (unique == 0 || cells[unique - 1] != cells[i]) {
+                cells[unique] = cells[i];
+                unique += 1;
+            }
+        }
+        cells = Arrays.copyOf(cells, unique);
+        cellCount = unique;
+
+        /* Boundary edge (cell, side) is used once it has been added to a ring. */
+        boolean[] used = new boolean[4 * cellCount];
+        double[][][] result = new double[0][][];
+        for (int c = 0; c < cellCount; c += 1) {
+            int cx = (int) (cells[c] >> 32);
+            int cy = (int) cells[c];
+            /* The corner each side of cell c starts at, in direction order E, N, W, S. */
+            int[][] starts = {{cx, cy}, {cx + 1, cy}, {cx + 1, cy + 1}, {cx, cy + 1}};
+            for (int direction = 0; direction < 4; direction += 1) {
+                int i = starts[direction][0];
+                int j = starts[direction][1];
+                int cell = edgeCell(i, j, direction);
+                if (cell == c && !used[4 * c + direction]) {
+                    result = Arrays.copyOf(result, result.length + 1);
+                    result[result.length - 1] = traceRing(i, j, direction, used);
+                }
+            }
+        }
+        return result;
+    }
+
+    private double[][] traceRing(int startI, int startJ, int startDirection, boolean[] used) {
+        int[] di = {1, 0, -1, 0};
+        int[] dj = {0, 1, 0, -1};
+        double[][] ring = new double[8][];
+        int size = 0;
+        int i = startI;
+        int j = startJ;
+        int direction = startDirection;
+        int previous = -1;
+        do {
+            if (direction != previous) {
+                if (size == ring.length) {
+                    ring = Arrays.copyOf(ring, size * 2);
+                }
+                ring[size] = new double[]{originLon + i * cellLon, originLat + j * cellLat};
+                size += 1;
+            }
+            used[4 * edgeCell(i, j, direction) + direction] = true;
+            i += di[direction];
+            j += dj[direction];
+            previous = direction;
+            for (int turn : new int[]{1, 0, 3}) {
+                int next = (previous + turn) % 4;
+                int cell = edgeCell(i, j, next);
+                if (cell >= 0 && !used[4 * cell + next]) {
+                    direction = next;
+                    break;
+                }
+            }
+        } while (i != startI || j != startJ);
+        ring = Arrays.copyOf(ring, size + 1);
+        ring[size] = ring[0];
+        return ring;
+    }
+
+    /**
+     * Returns the index of the marked cell whose boundary edge leaves corner (<code>i</code>,
+     * <code>j</code>) in the given direction (0 east, 1 north, 2 west, 3 south), or -1 if there
+     * is no such boundary edge.
+     */
+    private int edgeCell(int i, int j, int direction) {
+        /* The cell on the left of the edge must be marked and the one on its right must not. */
+        int[] leftI = {i, i - 1, i - 1, i};
+        int[] leftJ = {j, j, j - 1, j - 1};
+        int[] rightI = {i, i, i - 1, i - 1};
+        int[] rightJ = {j - 1, j, j, j - 1};
+        int left = Arrays.binarySearch(cells, 0, cellCount,
+                key(leftI[direction], leftJ[direction]));
+        if (left < 0) {
+            return -1;
+        }
+        int right = Arrays.binarySearch(cells, 0, cellCount,
+                key(rightI[direction], rightJ[direction]));
+        return right < 0 ? left : -1;
+    }
+}
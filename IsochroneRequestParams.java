@@ -0,0 +1,185 @@
+import java.util.Map;
+
+/**
+ * The IsochroneRequestParams contains the fields received from the browser in an isochrone
+ * request: a starting point and how far or how long to travel from it.
+ *
+ * This class can either be instantiated through a Spark request query map, or through the Builder
+ * class for mocking browser requests during unit testing of Isochrone.
+ */
+public class IsochroneRequestParams {
+    /** The starting point latitude. */
+    public final double lat;
+    /** The starting point longitude. */
+    public final double lon;
+    /** The distance budget in miles, or 0 if the budget is a travel time. */
+    public final double distance;
+    /** The travel time budget in seconds, or 0 if the budget is a distance. */
+    public final double time;
+    /** The side of an outline grid cell in miles, or 0 for the default. */
+    public final double cellSize;
+    /** The way of travelling. */
+    public final Router.Profile profile;
+
+    /**
+     * Validate and return a parameter map of the required request parameters.
+     * Requires that all input parameters are doubles and that exactly one of distance and time
+     * is given, and positive. The optional cell_size parameter sets the resolution of the
+     * outline, and the optional profile parameter names a <code>Router.Profile</code>,
+     * case-insensitively.
+     * @param req The queryParams map from a Spark HTTP Request.
+     * @return A populated IsochroneRequestParams.
+     */
+    public static IsochroneRequestParams from(Map<String, String[]> req) {
+        Builder builder = new Builder();
+        for (String param : REQUIRED_PARAMS) {
+            if (!req.containsKey(param)) {
+                String msg = String.format("Request failed: %s not found.", param);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        for (String param : PARAMS) {
+            if (!req.containsKey(param)) {
+                continue;
+            }
+            try {
+                builder.set(param, Double.parseDouble(req.get(param)[0]));
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                e.printStackTrace();
+                String msg = String.format("Incorrect parameters: unable to parse %s.", param);
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                String name = req.get("profile")[0].toUpperCase();
+                builder.setProfile(Router.Profile.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown profile.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("distance") == req.containsKey("time")) {
+            String msg = "Incorrect parameters: exactly one of distance and time is required.";
+            throw new IllegalArgumentException(msg);
+        }
+        IsochroneRequestParams params = builder.create();
+        if (!(params.budget() > 0)) {
+            String msg = String.format("Incorrect parameters: %s must be positive.",
+                    params.metric() == Router.Metric.TIME ? "time" : "distance");
+            throw new IllegalArgumentException(msg);
+        }
+        return params;
+    }
+
+    /**
+     * Returns the quantity the budget is in.
+     */
+    public Router.Metric metric() {
+        return time > 0 ? Router.Metric.TIME : Router.Metric.DISTANCE;
+    }
+
+    /**
+     * Returns the budget in units of <code>metric()</code>.
+     */
+    public double budget() {
+        return metric() == Router.Metric.TIME ? time : distance;
+    }
+
+    /**
+     * Constructor with private access to prevent direct instantiation of an
+     * IsochroneRequestParams instance. Use the factory method, from, instead.
+     */
+    private IsochroneRequestParams() {
+        this(0.0, 0.0, 0.0, 0.0, 0.0, Router.Profile.DRIVE);
+    }
+
+    private IsochroneRequestParams(double lat, double lon, double distance, double time,
+                                   double cellSize, Router.Profile profile) {
+        this.lat = lat;
+        this.lon = lon;
+        this.distance = distance;
+        this.time = time;
+        this.cellSize = cellSize;
+        this.profile = profile;
+    }
+
+    public static class Builder {
+        private double lat, lon, distance, time, cellSize;
+        private Router.Profile profile = Router.Profile.DRIVE;
+
+        /**
+         * Creates an IsochroneRequestParams.Builder instance that can be used to build
+         * an IsochroneRequestParams with various fields pre-set.
+         */
+        public Builder() {
+        }
+
+        public IsochroneRequestParams create() {
+            return new IsochroneRequestParams(lat, lon, distance, time, cellSize, profile);
+        }
+
+        public Builder setLat(double value) {
+            this.lat = value;
+            return this;
+        }
+
+        public Builder setLon(double value) {
+            this.lon = value;
+            return this;
+        }
+
+        public Builder setDistance(double value) {
+            this.distance = value;
+            return this;
+        }
+
+        public Builder setTime(double value) {
+            this.time = value;
+            return this;
+        }
+
+        public Builder setCellSize(double value) {
+            this.cellSize = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        private Builder set(String field, double value) {
+            switch (field) {
+                case "lat":
+                    this.lat = value;
+                    break;
+                case "lon":
+                    this.lon = value;
+                    break;
+                case "distance":
+                    this.distance = value;
+                    break;
+                case "time":
+                    this.time = value;
+                    break;
+                case "cell_size":
+                    this.cellSize = value;
+                    break;
+                default:
+                    String msg = String.format("%s is not a valid field for %f.%n", field, value);
+                    throw new IllegalArgumentException(msg);
+            }
+            return this;
+        }
+    }
+
+    /** Isochrone requests to the server must have the following keys in the params map. */
+    private static final String[] REQUIRED_PARAMS = {
+        "lat", "lon"
+    };
+    /** Every key an isochrone request may have. */
+    private static final String[] PARAMS = {
+        "lat", "lon", "distance", "time", "cell_size"
+    };
+}
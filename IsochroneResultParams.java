@@ -0,0 +1,55 @@
+/**
+ * The IsochroneResultParams contains the fields computed by Isochrone for serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class IsochroneResultParams {
+    /** How an isochrone request ended. */
+    enum Status {
+        /** The reachable area was found. */
+        FOUND,
+        /** The search ran over the request's budget before finding the area. */
+        TOO_EXPENSIVE
+    }
+
+    /** How the request ended. */
+    private final Status status;
+    /** Why the search was stopped, or null if it was not. */
+    private final String reason;
+    /** The NodeIDs of the vertices within the distance budget, nearest first. */
+    private final long[] vertices;
+    /** The rings outlining the reachable area, each a closed list of [lon, lat] pairs. */
+    private final double[][][] polygon;
+
+    /** Private constructor to prevent direct instantiation of an IsochroneResultParams instance. */
+    private IsochroneResultParams() {
+        this(new long[0], new double[0][][]);
+    }
+
+    /**
+     * Constructs an IsochroneResultParams instance and sets the vertices and polygon fields.
+     * @param vertices The vertices field.
+     * @param polygon The polygon field.
+     */
+    IsochroneResultParams(long[] vertices, double[][][] polygon) {
+        this(Status.FOUND, null, vertices, polygon);
+    }
+
+    private IsochroneResultParams(Status status, String reason, long[] vertices,
+                                  double[][][] polygon) {
+        this.status = status;
+        this.reason = reason;
+        this.vertices = vertices;
+        this.polygon = polygon;
+    }
+
+    /**
+     * Returns the result of a request whose search ran over its budget, with no vertices and no
+     * polygon.
+     * @param reason Why the search was stopped.
+     */
+    static IsochroneResultParams tooExpensive(String reason) {
+        return new IsochroneResultParams(Status.TOO_EXPENSIVE, reason, new long[0],
+                new double[0][][]);
+    }
+}
@@ -0,0 +1,460 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable two-dimensional k-d tree over the vertices of a <code>GraphDB</code>, built once when
+ * the graph is frozen and shared read-only by every request thread.
+ * <p>
+ * The tree is stored in implicit layout: the subtree over slots <code>[lo, hi)</code> has its
+ * splitting point at slot <code>(lo + hi) / 2</code>, its left subtree over the slots before it
+ * and its right subtree over the slots after it. Even depths split on x, odd depths on y. Each slot
+ * holds only a vertex index; the projected coordinates are the per-vertex arrays the graph keeps,
+ * which the segment R-tree shares, so the tree adds four bytes per vertex and queries never
+ * recompute a projection.
+ */
+class KDTree {
+    /**
+     * The vertex index stored at each slot.
+     */
+    private final int[] vertices;
+    /**
+     * The projected coordinates of each vertex, indexed by vertex rather than by slot.
+     */
+    private final double[] xs;
+    private final double[] ys;
+    /**
+     * The number of levels in the tree.
+     */
+    private final int height;
+
+    /**
+     * Builds a tree over vertices <code>0</code> to <code>x.length - 1</code> in O(n log n) time,
+     * selecting each median with an in-place nth-element partition rather than a full sort.
+     *
+     * @param xs The projected x-coordinate of each vertex, which the tree keeps and must not be
+     *           changed afterwards.
+     * @param ys The projected y-coordinate of each vertex, likewise.
+     */
+    KDTree(double[] xs, double[] ys) {
+        int n = xs.length;
+        vertices = new int[n];
+        this.xs = xs;
+        this.ys = ys;
+        for (int v = 0; v < n; v += 1) {
+            vertices[v] = v;
+        }
+        build(0, n, 0);
+        height = heightOf(n);
+    }
+
+    private KDTree(int[] vertices, double[] xs, double[] ys) {
+        this.vertices = vertices;
+        this.xs = xs;
+        this.ys = ys;
+        this.height = heightOf(vertices.length);
+    }
+
+    private static int heightOf(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n);
+    }
+
+    /**
+     * Returns the number of vertices in the tree.
+     */
+    int size() {
+        return vertices.length;
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(depth % 2 == 0 ? xs : ys, lo, hi - 1, mid);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Partially orders slots <code>[lo, hi]</code> by the <code>keys</code> of their vertices so
+     * that slot <code>k</code> holds the vertex it would hold if the range were sorted, with no
+     * larger key before it and no smaller key after it.
+     */
+    private void select(double[] keys, int lo, int hi, int k) {
+        while (hi > lo) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[vertices[mid]] < keys[vertices[lo]]) {
+                swap(lo, mid);
+            }
+            if (keys[vertices[hi]] < keys[vertices[lo]]) {
+                swap(lo, hi);
+            }
+            if (keys[vertices[hi]] < keys[vertices[mid]]) {
+                swap(mid, hi);
+            }
+            double pivot = keys[vertices[mid]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[vertices[i]] < pivot) {
+                    i += 1;
+                }
+                while (keys[vertices[j]] > pivot) {
+                    j -= 1;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i += 1;
+                    j -= 1;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int v = vertices[i];
+        vertices[i] = vertices[j];
+        vertices[j] = v;
+    }
+
+    /**
+     * Returns the vertex closest to the projected point (<code>x</code>, <code>y</code>).
+     * <p>
+     * The search descends towards the query point, deferring the far side of every split on an
+     * explicit stack together with the squared distance from the query point to the splitting
+     * line. A deferred subtree is only visited if that distance is still smaller than the best
+     * distance found so far, so the answer is exact. The stack is reused per thread, so the
+     * query allocates nothing.
+     *
+     * @param x The projected x-coordinate of the query point.
+     * @param y The projected y-coordinate of the query point.
+     * @return The index of the nearest vertex, or -1 if the tree is empty.
+     */
+    int nearest(double x, double y) {
+        Stack stack = Stack.acquire(height);
+        try {
+            stack.push(0, vertices.length, 0, 0.0);
+            double bestDistance = Double.POSITIVE_INFINITY;
+            int best = -1;
+            while (stack.size > 0) {
+                stack.size -= 1;
+                if (stack.planes[stack.size] >= bestDistance) {
+                    continue;
+                }
+                int lo = stack.ranges[3 * stack.size];
+                int hi = stack.ranges[3 * stack.size + 1];
+                int depth = stack.ranges[3 * stack.size + 2];
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int v = vertices[mid];
+                    double dx = xs[v] - x;
+                    double dy = ys[v] - y;
+                    double d = dx * dx + dy * dy;
+                    if (d < bestDistance) {
+                        bestDistance = d;
+                        best = v;
+                    }
+                    double diff = (depth & 1) == 0 ? dx : dy;
+                    depth += 1;
+                    if (diff > 0) {
+                        stack.push(mid + 1, hi, depth, diff * diff);
+                        hi = mid;
+                    } else {
+                        stack.push(lo, mid, depth, diff * diff);
+                        lo = mid + 1;
+                    }
+                }
+            }
+            return best;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Returns the <code>k</code> vertices closest to the projected point (<code>x</code>,
+     * <code>y</code>), nearest first. The search keeps the best candidates in a bounded max-heap
+     * and prunes deferred subtrees against the farthest of them once the heap is full.
+     *
+     * @param x The projected x-coordinate of the query point.
+     * @param y The projected y-coordinate of the query point.
+     * @param k The number of vertices to return.
+     * @return The indices of the <code>min(k, size())</code> nearest vertices.
+     */
+    int[] nearest(double x, double y, int k) {
+        k = Math.min(k, vertices.length);
+        if (k <= 0) {
+            return new int[0];
+        }
+        int[] heap = new int[k];
+        double[] heapDistances = new double[k];
+        int count = 0;
+        Stack stack = Stack.acquire(height);
+        try {
+            stack.push(0, vertices.length, 0, 0.0);
+            while (stack.size > 0) {
+                stack.size -= 1;
+                if (count == k && stack.planes[stack.size] >= heapDistances[0]) {
+                    continue;
+                }
+                int lo = stack.ranges[3 * stack.size];
+                int hi = stack.ranges[3 * stack.size + 1];
+                int depth = stack.ranges[3 * stack.size + 2];
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int v = vertices[mid];
+                    double dx = xs[v] - x;
+                    double dy = ys[v] - y;
+                    double d = dx * dx + dy * dy;
+                    if (count < k) {
+                        heap[count] = v;
+                        heapDistances[count] = d;
+                        count += 1;
+                        siftUp(heap, heapDistances, count - 1);
+                    } else if (d < heapDistances[0]) {
+                        heap[0] = v;
+                        heapDistances[0] = d;
+                        siftDown(heap, heapDistances, 0, count);
+                    }
+                    double diff = (depth & 1) == 0 ? dx : dy;
+                    depth += 1;
+                    if (diff > 0) {
+                        stack.push(mid + 1, hi, depth, diff * diff);
+                        hi = mid;
+                    } else {
+                        stack.push(lo, mid, depth, diff * diff);
+                        lo = mid + 1;
+                    }
+                }
+            }
+            for (int end = count - 1; end > 0; end -= 1) {
+                swap(heap, heapDistances, 0, end);
+                siftDown(heap, heapDistances, 0, end);
+            }
+            return heap;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Returns every vertex within <code>radius</code> of the projected point (<code>x</code>,
+     * <code>y</code>), in no particular order.
+     *
+     * @param x      The projected x-coordinate of the query point.
+     * @param y      The projected y-coordinate of the query point.
+     * @param radius The search radius, in projected units.
+     * @return The indices of the vertices within <code>radius</code>.
+     */
+    int[] withinDistance(double x, double y, double radius) {
+        double radiusSquared = radius * radius;
+        int[] found = new int[16];
+        int count = 0;
+        Stack stack = Stack.acquire(height);
+        try {
+            stack.push(0, vertices.length, 0, 0.0);
+            while (stack.size > 0) {
+                stack.size -= 1;
+                if (stack.planes[stack.size] > radiusSquared) {
+                    continue;
+                }
+                int lo = stack.ranges[3 * stack.size];
+                int hi = stack.ranges[3 * stack.size + 1];
+                int depth = stack.ranges[3 * stack.size + 2];
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int v = vertices[mid];
+                    double dx = xs[v] - x;
+                    double dy = ys[v] - y;
+                    if (dx * dx + dy * dy <= radiusSquared) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count] = v;
+                        count += 1;
+                    }
+                    double diff = (depth & 1) == 0 ? dx : dy;
+                    depth += 1;
+                    if (diff > 0) {
+                        stack.push(mid + 1, hi, depth, diff * diff);
+                        hi = mid;
+                    } else {
+                        stack.push(lo, mid, depth, diff * diff);
+                        lo = mid + 1;
+                    }
+                }
+            }
+            return Arrays.copyOf(found, count);
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Passes every vertex inside the projected rectangle [<code>minX</code>, <code>maxX</code>]
+     * by [<code>minY</code>, <code>maxY</code>] to <code>action</code>, in no particular order,
+     * visiting only the subtrees whose half-plane overlaps the rectangle.
+     *
+     * @param action Receives the index of each vertex inside the rectangle.
+     */
+    void withinBox(double minX, double minY, double maxX, double maxY, IntConsumer action) {
+        Stack stack = Stack.acquire(height);
+        try {
+            stack.push(0, vertices.length, 0, 0.0);
+            while (stack.size > 0) {
+                stack.size -= 1;
+                int lo = stack.ranges[3 * stack.size];
+                int hi = stack.ranges[3 * stack.size + 1];
+                int depth = stack.ranges[3 * stack.size + 2];
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int v = vertices[mid];
+                    double x = xs[v];
+                    double y = ys[v];
+                    if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                        action.accept(v);
+                    }
+                    boolean even = (depth & 1) == 0;
+                    boolean goLeft = even ? minX <= x : minY <= y;
+                    boolean goRight = even ? maxX >= x : maxY >= y;
+                    depth += 1;
+                    if (goLeft && goRight) {
+                        stack.push(mid + 1, hi, depth, 0.0);
+                        hi = mid;
+                    } else if (goLeft) {
+                        hi = mid;
+                    } else if (goRight) {
+                        lo = mid + 1;
+                    } else {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Max-heap helpers for <code>nearest(x, y, k)</code>, ordered by distance.
+     */
+    private static void siftUp(int[] heap, double[] distances, int i) {
+        while (i > 0 && distances[(i - 1) / 2] < distances[i]) {
+            swap(heap, distances, i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private static void siftDown(int[] heap, double[] distances, int i, int size) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && distances[child + 1] > distances[child]) {
+                child += 1;
+            }
+            if (distances[i] >= distances[child]) {
+                return;
+            }
+            swap(heap, distances, i, child);
+            i = child;
+        }
+    }
+
+    private static void swap(int[] heap, double[] distances, int i, int j) {
+        int v = heap[i];
+        heap[i] = heap[j];
+        heap[j] = v;
+        double d = distances[i];
+        distances[i] = distances[j];
+        distances[j] = d;
+    }
+
+    /**
+     * Per-thread stack of deferred subtrees. Each entry is a slot range, its depth, and the
+     * squared distance from the query point to the plane that separates it from the query.
+     * Entries are pushed in order of increasing depth, so a tree of height h never needs more
+     * than h + 1 entries.
+     * <p>
+     * A query that runs while another on the same thread is still traversing, such as one made
+     * from the callback of <code>withinBox</code>, takes the next stack in the thread's chain
+     * instead of clearing the one in use, so queries may nest to any depth.
+     */
+    private static final class Stack {
+        private static final ThreadLocal<Stack> STACKS = ThreadLocal.withInitial(Stack::new);
+
+        private int[] ranges = new int[0];
+        private double[] planes = new double[0];
+        private int size;
+        private boolean inUse;
+        /** The stack for a query nested inside the one using this stack. */
+        private Stack next;
+
+        /**
+         * Returns the first stack of the current thread's chain that no query is using, sized
+         * for a tree of the given height. It must be given back with <code>release</code>.
+         */
+        static Stack acquire(int height) {
+            Stack stack = STACKS.get();
+            while (stack.inUse) {
+                if (stack.next == null) {
+                    stack.next = new Stack();
+                }
+                stack = stack.next;
+            }
+            if (stack.planes.length < height + 1) {
+                stack.ranges = new int[3 * (height + 1)];
+                stack.planes = new double[height + 1];
+            }
+            stack.size = 0;
+            stack.inUse = true;
+            return stack;
+        }
+
+        void release() {
+            inUse = false;
+        }
+
+        void push(int lo, int hi, int depth, double plane) {
+            ranges[3 * size] = lo;
+            ranges[3 * size + 1] = hi;
+            ranges[3 * size + 2] = depth;
+            planes[size] = plane;
+            size += 1;
+        }
+    }
+
+    void write(GraphSnapshot.Writer writer) throws IOException {
+        writer.writeInts(vertices);
+    }
+
+    /**
+     * Reads a tree written by <code>write</code> over the vertices whose projected coordinates
+     * are <code>xs</code> and <code>ys</code>.
+     */
+    static KDTree read(GraphSnapshot.Reader reader, double[] xs, double[] ys) throws IOException {
+        int[] vertices = reader.readInts();
+        if (vertices.length != xs.length) {
+            throw new IOException("Corrupt snapshot: k-d tree does not match the vertices.");
+        }
+        for (int v : vertices) {
+            if (v < 0 || v >= xs.length) {
+                throw new IOException("Corrupt snapshot: k-d tree vertex out of range.");
+            }
+        }
+        return new KDTree(vertices, xs, ys);
+    }
+
+    /**
+     * Returns the bytes taken by the tree, not counting the coordinate arrays it shares.
+     */
+    long bytes() {
+        return (long) Integer.BYTES * vertices.length;
+    }
+}
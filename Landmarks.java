@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Landmark distance tables for the ALT (A*, landmarks, triangle inequality) heuristic. A handful
+ * of landmark vertices are picked far apart from each other, and the shortest road distance from
+ * every landmark to every vertex is precomputed. For any landmark <code>L</code>, the triangle
+ * inequality gives |d(L, t) - d(L, v)| as a lower bound on the distance from <code>v</code> to
+ * <code>t</code>, which is much tighter than the great-circle distance wherever roads detour
+ * around hills or water.
+ * <p>
+ * Roads are undirected, so the distance from a landmark equals the distance to it and one table
+ * per landmark serves both directions. The tables are stored as floats, vertex-major, so that the
+ * bounds for one vertex are read from a single run of memory.
+ */
+class Landmarks {
+    /**
+     * File name suffix appended to the OSM XML path to find its landmark tables.
+     */
+    static final String SUFFIX = ".landmarks";
+    /**
+     * The number of landmarks picked for a graph with enough vertices.
+     */
+    static final int DEFAULT_COUNT = 16;
+    /**
+     * Bump whenever the landmark selection or the table layout changes.
+     */
+    private static final int VERSION = 1;
+    /**
+     * An upper bound on the relative error of rounding a distance to a float. Bounds are reduced
+     * by this much of the two distances they come from, so that they stay admissible.
+     */
+    private static final double FLOAT_ERROR = 1e-7;
+
+    /** The landmark vertices, in the order they were picked. */
+    private final int[] vertices;
+    /**
+     * The distance from landmark <code>i</code> to vertex <code>v</code> is
+     * <code>distances[v * vertices.length + i]</code>, or infinity if it cannot be reached.
+     */
+    private final float[] distances;
+
+    private Landmarks(int[] vertices, float[] distances) {
+        this.vertices = vertices;
+        this.distances = distances;
+    }
+
+    /**
+     * Picks up to <code>count</code> landmarks by farthest selection and computes their distance
+     * tables. The first landmark is the vertex farthest from <code>origin</code>; every following
+     * one is the vertex whose distance to the nearest landmark picked so far is largest. Vertices
+     * that cannot be reached from <code>origin</code> never become landmarks.
+     *
+     * @param g           The frozen graph.
+     * @param edgeWeights The weight of every edge of <code>g</code>, indexed by edge.
+     * @param origin      The vertex the selection starts from.
+     * @param count       The maximum number of landmarks.
+     */
+    Landmarks(GraphDB g, double[] edgeWeights, int origin, int count) {
+        int n = g.vertexCount();
+        double[] distance = new double[n];
+        double[] nearestLandmark = new double[n];
+        Arrays.fill(nearestLandmark, Double.POSITIVE_INFINITY);
+        int[] picked = new int[Math.min(count, n)];
+        float[][] tables = new float[picked.length][];
+        IndexedMinHeap fringe = new IndexedMinHeap(n);
+
+        int landmarks = 0;
+        int next = -1;
+        if (picked.length > 0) {
+            distancesFrom(g, edgeWeights, origin, distance, fringe);
+            next = farthest(distance);
+        }
+        while (landmarks < picked.length && next != -1) {
+            picked[landmarks] = next;
+            distancesFrom(g, edgeWeights, next, distance, fringe);
+            float[] table = new float[n];
+            for (int v = 0; v < n; v += 1) {
+                table[v] = (float) distance[v];
+                nearestLandmark[v] = Math.min(nearestLandmark[v], distance[v]);
+            }
+            tables[landmarks] = table;
+            landmarks += 1;
+            next = farthest(nearestLandmark);
+            if (next != -1 && nearestLandmark[next] == 0.0) {
+                /* Every reachable vertex is already a landmark. */
+                next = -1;
+            }
+        }
+
+        vertices = Arrays.copyOf(picked, landmarks);
+        distances = new float[n * landmarks];
+        for (int v = 0; v < n; v += 1) {
+            for (int i = 0; i < landmarks; i += 1) {
+                distances[v * landmarks + i] = tables[i][v];
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex with the largest finite value in <code>distance</code>, or -1 if there is
+     * none.
+     */
+    private static int farthest(double[] distance) {
+        int best = -1;
+        for (int v = 0; v < distance.length; v += 1) {
+            if (distance[v] != Double.POSITIVE_INFINITY
+                    && (best == -1 || distance[v] > distance[best])) {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm over the whole graph from <code>source</code>, leaving the
+     * distance to every vertex in <code>distance</code>, or infinity where it cannot be reached.
+     */
+    private static void distancesFrom(GraphDB g, double[] edgeWeights, int source,
+                                      double[] distance, IndexedMinHeap fringe) {
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        distance[source] = 0.0;
+        fringe.add(source, 0.0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.poll();
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                double newDistance = distance[v] + edgeWeights[e];
+                if (newDistance < distance[w]) {
+                    distance[w] = newDistance;
+                    fringe.addOrDecrease(w, newDistance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of landmarks.
+     */
+    int size() {
+        return vertices.length;
+    }
+
+    /**
+     * Returns a lower bound on the distance between vertices <code>v</code> and <code>t</code>:
+     * the largest |d(L, t) - d(L, v)| over all landmarks that reach both of them.
+     *
+     * @param v The index of a vertex in the graph.
+     * @param t The index of a vertex in the graph.
+     * @return A lower bound on the road distance between <code>v</code> and <code>t</code>.
+     */
+    double lowerBound(int v, int t) {
+        int k = vertices.length;
+        int rowV = v * k;
+        int rowT = t * k;
+        double best = 0.0;
+        for (int i = 0; i < k; i += 1) {
+            float toV = distances[rowV + i];
+            float toT = distances[rowT + i];
+            if (toV == Float.POSITIVE_INFINITY || toT == Float.POSITIVE_INFINITY) {
+                continue;
+            }
+            double bound = Math.abs((double) toT - toV) - FLOAT_ERROR * ((double) toT + toV);
+            if (bound > best) {
+                best = bound;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a lower bound on the distance from vertex <code>v</code> to a snapped point: the
+     * smaller of the bounds through either end of its segment, each plus the distance from that
+     * end to the point.
+     *
+     * @param v           The index of a vertex in the graph.
+     * @param destination A point snapped onto a road segment.
+     * @param metric      The quantity the tables were computed for.
+     * @return A lower bound on the road distance from <code>v</code> to the point.
+     */
+    double lowerBound(int v, GraphDB.Snap destination, Router.Metric metric) {
+        return Math.min(
+                lowerBound(v, destination.fromVertex) + destination.fromWeight(metric),
+                lowerBound(v, destination.toVertex) + destination.toWeight(metric));
+    }
+
+    void write(GraphSnapshot.Writer writer) throws IOException {
+        writer.writeInts(new int[]{VERSION, distances.length});
+        writer.writeInts(vertices);
+        writer.writeFloats(distances);
+    }
+
+    /**
+     * Reads landmark tables written by <code>write</code> for a graph of
+     * <code>vertexCount</code> vertices.
+     *
+     * @return The landmark tables, or <code>null</code> if they were written by a different
+     * version of this class.
+     * @throws IOException If the tables cannot be read or do not fit the graph.
+     */
+    static Landmarks read(GraphSnapshot.Reader reader, int vertexCount) throws IOException {
+        int[] header = reader.readInts();
+        if (header.length != 2 || header[0] != VERSION) {
+            return null;
+        }
+        int[] vertices = reader.readInts();
+        if ((long) vertices.length * vertexCount != header[1]) {
+            throw new IOException("Corrupt landmarks: tables do not match the graph.");
+        }
+        float[] distances = reader.readFloats();
+        if (distances.length != header[1]) {
+            throw new IOException("Corrupt landmarks: truncated distance table.");
+        }
+        for (int landmark : vertices) {
+            if (landmark < 0 || landmark >= vertexCount) {
+                throw new IOException("Corrupt landmarks: landmark out of range.");
+            }
+        }
+        return new Landmarks(vertices, distances);
+    }
+}
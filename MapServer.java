@@ -9,7 +9,9 @@ import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
@@ -55,6 +57,17 @@ public class MapServer {
     private static List<Long> route;
     /** The configured Gson Java serializer. */
     private static Gson gson;
+    /** The most client sessions whose routing state is kept. */
+    private static final int MAX_ROUTE_SESSIONS = 32;
+    /**
+     * The routing state of the most recently active client sessions, keyed by session ID, so
+     * that dragging a route endpoint reuses the previous search; see <code>RouteSession</code>.
+     */
+    private static Map<String, RouteSession> routeSessions;
+    /** The most vertices the searches of one request may settle between them. */
+    private static final long MAX_SETTLED_PER_REQUEST = 5_000_000;
+    /** The wall-clock time the searches of one request may take, in milliseconds. */
+    private static final long TIME_LIMIT_PER_REQUEST = 2_000;
 
     /**
      * Code responsible for initializing variables. These objects must be instantiated
@@ -66,6 +79,13 @@ public class MapServer {
         graph = new GraphDB(OSM_DB_PATH);
         rasterer = new Rasterer();
         route = Collections.emptyList();
+        routeSessions = Collections.synchronizedMap(
+                new LinkedHashMap<String, RouteSession>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, RouteSession> eldest) {
+                        return size() > MAX_ROUTE_SESSIONS;
+                    }
+                });
         gson = new GsonBuilder()
                 .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
                 .create();
@@ -118,13 +138,88 @@ public class MapServer {
             } catch (IllegalArgumentException e) {
                 halt(HALT_RESPONSE, e.getMessage());
             }
-            route = Router.shortestPath(graph,
-                    params.startLon, params.startLat, params.endLon, params.endLat);
-            String directions = getDirectionsText(Router.routeDirections(graph, route));
-            RouteResultParams routeParams = new RouteResultParams(!route.isEmpty(), directions);
-            return gson.toJson(routeParams);
+            RouteSession session = routeSessions.computeIfAbsent(req.session().id(),
+                    id -> new RouteSession());
+            /* Preprocessing for the algorithm happens once, before this request's clock starts. */
+            Router.prepare(graph, params.algorithm, params.metric, params.profile);
+            /* A newer request from the same client cancels this one's searches. */
+            SearchBudget budget = SearchBudget.of(MAX_SETTLED_PER_REQUEST, TIME_LIMIT_PER_REQUEST);
+            session.supersede(budget);
+            SearchBudget previous = budget.enter();
+            try {
+                if (params.alternatives > 0) {
+                    /* The shortest route and its alternatives come from one pair of searches. */
+                    List<List<Long>> routes = Router.alternatives(graph,
+                            params.startLon, params.startLat, params.endLon, params.endLat,
+                            params.alternatives, params.metric, params.profile);
+                    route = routes.isEmpty() ? Collections.emptyList() : routes.get(0);
+                    String directions = getDirectionsText(Router.routeDirections(graph, route));
+                    return gson.toJson(new RouteResultParams(!route.isEmpty(), directions,
+                            routes.isEmpty() ? routes : routes.subList(1, routes.size())));
+                }
+                route = Router.shortestPath(graph, session,
+                        params.startLon, params.startLat, params.endLon, params.endLat,
+                        params.algorithm, params.metric, params.profile);
+                String directions = getDirectionsText(Router.routeDirections(graph, route));
+                RouteResultParams routeParams = new RouteResultParams(!route.isEmpty(), directions);
+                return gson.toJson(routeParams);
+            } catch (SearchBudget.Exceeded e) {
+                route = Collections.emptyList();
+                return gson.toJson(RouteResultParams.tooExpensive(e.getMessage()));
+            } finally {
+                SearchBudget.exit(previous);
+            }
         });
 
+        /* Define the distance matrix endpoint for HTTP GET requests. */
+        get("/matrix", (req, res) -> {
+            MatrixRequestParams params = null;
+            try {
+                params = MatrixRequestParams.from(req.queryMap().toMap());
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            SearchBudget budget = SearchBudget.of(MAX_SETTLED_PER_REQUEST, TIME_LIMIT_PER_REQUEST);
+            SearchBudget previous = budget.enter();
+            try {
+                double[][] distances = Router.distanceMatrix(graph, params.sourceLons,
+                        params.sourceLats, params.targetLons, params.targetLats,
+                        params.metric, params.profile);
+                return gson.toJson(new MatrixResultParams(distances));
+            } catch (SearchBudget.Exceeded e) {
+                return gson.toJson(MatrixResultParams.tooExpensive(e.getMessage()));
+            } finally {
+                SearchBudget.exit(previous);
+            }
+        });
+
+        /* Define the isochrone endpoint for HTTP GET requests. */
+        get("/isochrone", (req, res) -> {
+            IsochroneRequestParams params = null;
+            try {
+                params = IsochroneRequestParams.from(req.queryMap().toMap());
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            SearchBudget budget = SearchBudget.of(MAX_SETTLED_PER_REQUEST, TIME_LIMIT_PER_REQUEST);
+            SearchBudget previous = budget.enter();
+            try {
+                Isochrone isochrone = new Isochrone(graph, params.lon, params.lat,
+                        params.budget(), params.metric(), params.profile, params.cellSize);
+                return gson.toJson(new IsochroneResultParams(isochrone.vertices, isochrone.rings));
+            } catch (SearchBudget.Exceeded e) {
+                return gson.toJson(IsochroneResultParams.tooExpensive(e.getMessage()));
+            } finally {
+                SearchBudget.exit(previous);
+            }
+        });
+
+        /* Define the API endpoint for the route cache counters. */
+        get("/route_cache", (req, res) -> gson.toJson(graph.routeCache().stats()));
+
+        /* Define the API endpoint for the memory taken by each column of the way table. */
+        get("/way_table", (req, res) -> gson.toJson(graph.ways().footprint()));
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             route = Collections.emptyList();
@@ -0,0 +1,179 @@
+import java.util.Map;
+
+/**
+ * The MatrixRequestParams contains the fields received from the browser in a distance matrix
+ * request. Each coordinate list is sent as one comma-separated query parameter.
+ *
+ * This class can either be instantiated through a Spark request query map, or through the Builder
+ * class for mocking browser requests during unit testing of Router.distanceMatrix.
+ */
+public class MatrixRequestParams {
+    /** The source longitudes. */
+    public final double[] sourceLons;
+    /** The source latitudes, in the same order. */
+    public final double[] sourceLats;
+    /** The target longitudes. */
+    public final double[] targetLons;
+    /** The target latitudes, in the same order. */
+    public final double[] targetLats;
+    /** The quantity the routes should be shortest in. */
+    public final Router.Metric metric;
+    /** The way of travelling to route for. */
+    public final Router.Profile profile;
+
+    /**
+     * Validate and return a parameter map of the required request parameters.
+     * Requires that all input parameters are non-empty comma-separated lists of doubles, and that
+     * each longitude list is as long as its latitude list. The optional metric and profile
+     * parameters name a <code>Router.Metric</code> and a <code>Router.Profile</code>,
+     * case-insensitively.
+     * @param req The queryParams map from a Spark HTTP Request.
+     * @return A populated MatrixRequestParams.
+     */
+    public static MatrixRequestParams from(Map<String, String[]> req) {
+        Builder builder = new Builder();
+        for (String param : REQUIRED_PARAMS) {
+            if (!req.containsKey(param)) {
+                String msg = String.format("Request failed: %s not found.", param);
+                throw new IllegalArgumentException(msg);
+            } else {
+                try {
+                    builder.set(param, parseList(req.get(param)[0]));
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    e.printStackTrace();
+                    String msg = String.format("Incorrect parameters: unable to parse %s.", param);
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+        }
+        if (req.containsKey("metric")) {
+            try {
+                String name = req.get("metric")[0].toUpperCase();
+                builder.setMetric(Router.Metric.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown metric.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                String name = req.get("profile")[0].toUpperCase();
+                builder.setProfile(Router.Profile.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown profile.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        MatrixRequestParams params = builder.create();
+        if (params.sourceLons.length != params.sourceLats.length
+                || params.targetLons.length != params.targetLats.length) {
+            String msg = "Incorrect parameters: longitudes and latitudes differ in number.";
+            throw new IllegalArgumentException(msg);
+        }
+        return params;
+    }
+
+    private static double[] parseList(String value) {
+        String[] parts = value.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i += 1) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Constructor with private access to prevent direct instantiation of a MatrixRequestParams
+     * instance. Use the factory method, from, instead.
+     */
+    private MatrixRequestParams() {
+        this(new double[0], new double[0], new double[0], new double[0], Router.Metric.DISTANCE,
+                Router.Profile.DRIVE);
+    }
+
+    private MatrixRequestParams(double[] sourceLons, double[] sourceLats,
+                                double[] targetLons, double[] targetLats, Router.Metric metric,
+                                Router.Profile profile) {
+        this.sourceLons = sourceLons;
+        this.sourceLats = sourceLats;
+        this.targetLons = targetLons;
+        this.targetLats = targetLats;
+        this.metric = metric;
+        this.profile = profile;
+    }
+
+    public static class Builder {
+        private double[] sourceLons = new double[0], sourceLats = new double[0];
+        private double[] targetLons = new double[0], targetLats = new double[0];
+        private Router.Metric metric = Router.Metric.DISTANCE;
+        private Router.Profile profile = Router.Profile.DRIVE;
+
+        /**
+         * Creates a MatrixRequestParams.Builder instance that can be used to build
+         * a MatrixRequestParams with various fields pre-set.
+         */
+        public Builder() {
+        }
+
+        public MatrixRequestParams create() {
+            return new MatrixRequestParams(sourceLons, sourceLats, targetLons, targetLats,
+                    metric, profile);
+        }
+
+        public Builder setSourceLons(double[] value) {
+            this.sourceLons = value;
+            return this;
+        }
+
+        public Builder setSourceLats(double[] value) {
+            this.sourceLats = value;
+            return this;
+        }
+
+        public Builder setTargetLons(double[] value) {
+            this.targetLons = value;
+            return this;
+        }
+
+        public Builder setTargetLats(double[] value) {
+            this.targetLats = value;
+            return this;
+        }
+
+        public Builder setMetric(Router.Metric value) {
+            this.metric = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        private Builder set(String field, double[] value) {
+            switch (field) {
+                case "source_lons":
+                    this.sourceLons = value;
+                    break;
+                case "source_lats":
+                    this.sourceLats = value;
+                    break;
+                case "target_lons":
+                    this.targetLons = value;
+                    break;
+                case "target_lats":
+                    this.targetLats = value;
+                    break;
+                default:
+                    String msg = String.format("%s is not a valid field.%n", field);
+                    throw new IllegalArgumentException(msg);
+            }
+            return this;
+        }
+    }
+
+    /** Matrix requests to the server must have the following keys in the params map. */
+    private static final String[] REQUIRED_PARAMS = {
+        "source_lons", "source_lats", "target_lons", "target_lats"
+    };
+}
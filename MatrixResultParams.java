@@ -0,0 +1,62 @@
+/**
+ * The MatrixResultParams contains the distances computed by Router.distanceMatrix for
+ * serialization by Gson.
+ *
+ * The fields in this class cannot be accessed as it is only used to serialize results in MapServer.
+ */
+class MatrixResultParams {
+    /** How a matrix request ended. */
+    enum Status {
+        /** Every distance was computed. */
+        FOUND,
+        /** The searches ran over the request's budget before filling in the matrix. */
+        TOO_EXPENSIVE
+    }
+
+    /** How the request ended. */
+    private final Status status;
+    /** Why the searches were stopped, or null if they were not. */
+    private final String reason;
+    /**
+     * The distance in miles from source i to target j at [i][j], or null where the target cannot
+     * be reached, since JSON has no infinity.
+     */
+    private final Double[][] distances;
+
+    /** Private constructor to prevent direct instantiation of a MatrixResultParams instance. */
+    private MatrixResultParams() {
+        this(new double[0][0]);
+    }
+
+    /**
+     * Constructs a MatrixResultParams instance from a distance matrix.
+     * @param matrix The distances, with infinity where a target cannot be reached.
+     */
+    MatrixResultParams(double[][] matrix) {
+        status = Status.FOUND;
+        reason = null;
+        distances = new Double[matrix.length][];
+        for (int i = 0; i < matrix.length; i += 1) {
+            distances[i] = new Double[matrix[i].length];
+            for (int j = 0; j < matrix[i].length; j += 1) {
+                if (matrix[i][j] != Double.POSITIVE_INFINITY) {
+                    distances[i][j] = matrix[i][j];
+                }
+            }
+        }
+    }
+
+    private MatrixResultParams(Status status, String reason) {
+        this.status = status;
+        this.reason = reason;
+        this.distances = new Double[0][];
+    }
+
+    /**
+     * Returns the result of a request whose searches ran over its budget, with no distances.
+     * @param reason Why the searches were stopped.
+     */
+    static MatrixResultParams tooExpensive(String reason) {
+        return new MatrixResultParams(Status.TOO_EXPENSIVE, reason);
+    }
+}
@@ -0,0 +1,263 @@
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded least-recently-used cache of routes, keyed by where the two ends snapped to. Each
+ * <code>GraphDB</code> owns one, so replacing the graph also replaces its cache, and
+ * <code>clear</code> empties it for anything else that changes the routes.
+ * <p>
+ * A snapped end is identified by its segment and its position along the segment rounded to the
+ * nearest <code>1 / FRACTION_STEPS</code>, so clicks a few feet apart on the same road share an
+ * entry. The route cached for a key is therefore the route for one point in that stretch, and can
+ * be longer than the exact route for another by at most a sixteenth of each end segment.
+ * <p>
+ * The cache is bounded by an estimate of the memory its routes take. Routes are stored as
+ * primitive arrays and handed out as read-only list views, so a hit copies nothing.
+ * <p>
+ * Every request thread looks routes up here, so the cache is split into up to
+ * <code>SEGMENTS</code> independently locked LRU maps, each with an equal share of the memory
+ * budget, and a key always goes to the same segment. Threads only contend when their keys share
+ * a segment, and eviction is least-recently-used within a segment rather than across the whole
+ * cache. The counters are kept outside the locks.
+ */
+class RouteCache {
+    /**
+     * The number of steps a segment is divided into for the cache key.
+     */
+    static final int FRACTION_STEPS = 16;
+    /**
+     * The default memory budget, in bytes.
+     */
+    static final long DEFAULT_MAX_BYTES = 16L << 20;
+    /**
+     * Estimated bytes per entry besides the route itself: the key, the map entry and the arrays.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    /**
+     * The most independently locked parts of the cache; a power of two.
+     */
+    private static final int SEGMENTS = 16;
+    /**
+     * The smallest share of the budget worth giving a segment. Smaller caches have fewer
+     * segments, so that a segment still holds a good number of routes.
+     */
+    private static final long MIN_SEGMENT_BYTES = 64L << 10;
+
+    private final long maxBytes;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    RouteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        int count = SEGMENTS;
+        while (count > 1 && maxBytes / count < MIN_SEGMENT_BYTES) {
+            count /= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i += 1) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Returns the cached route between two snapped points, or <code>null</code> if there is none.
+     * Counts a hit or a miss.
+     */
+    List<Long> get(Key key) {
+        Route route = segmentFor(key).get(key);
+        if (route == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return route;
+    }
+
+    /**
+     * Caches <code>route</code> under <code>key</code>, evicting the least recently used routes
+     * of its segment until the segment fits in its share of the memory budget again.
+     *
+     * @return The cached, read-only copy of the route.
+     */
+    List<Long> put(Key key, List<Long> route) {
+        Route copy = new Route(route);
+        evictions.add(segmentFor(key).put(key, copy));
+        return copy;
+    }
+
+    /**
+     * Removes every route. The counters keep counting.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Returns the current counters, for sizing the cache. The segments are read one after
+     * another, so the totals are not a snapshot of one instant while routes are being added.
+     */
+    Stats stats() {
+        int entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                bytes += segment.bytes;
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries, bytes, maxBytes);
+    }
+
+    /**
+     * One independently locked part of the cache: an access-ordered map with its own share of
+     * the memory budget.
+     */
+    private static class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<Key, Route> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Route get(Key key) {
+            return entries.get(key);
+        }
+
+        /**
+         * Adds <code>route</code> and evicts the least recently used routes until the segment
+         * fits in its budget.
+         *
+         * @return The number of routes evicted.
+         */
+        synchronized int put(Key key, Route route) {
+            Route previous = entries.put(key, route);
+            if (previous != null) {
+                bytes -= previous.bytes();
+            }
+            bytes += route.bytes();
+            int evicted = 0;
+            Iterator<Map.Entry<Key, Route>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().bytes();
+                eldest.remove();
+                evicted += 1;
+            }
+            return evicted;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * A point-in-time copy of the cache counters, serialized by Gson.
+     */
+    static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+        private final long maxBytes;
+
+        private Stats(long hits, long misses, long evictions, int entries, long bytes,
+                      long maxBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Identifies a route by the segments its ends snapped to, their rounded positions, the
+     * metric it is shortest in and the profile it is for.
+     */
+    static class Key {
+        private final long startSegment;
+        private final long destinationSegment;
+        private final int positions;
+        private final Router.Metric metric;
+        private final Router.Profile profile;
+
+        Key(GraphDB.Snap start, GraphDB.Snap destination, Router.Metric metric) {
+            startSegment = (long) start.fromVertex << 32 | start.toVertex;
+            destinationSegment = (long) destination.fromVertex << 32 | destination.toVertex;
+            positions = (int) Math.round(start.fraction * FRACTION_STEPS) << 16
+                    | (int) Math.round(destination.fraction * FRACTION_STEPS);
+            this.metric = metric;
+            this.profile = start.profile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return startSegment == other.startSegment
+                    && destinationSegment == other.destinationSegment
+                    && positions == other.positions
+                    && metric == other.metric
+                    && profile == other.profile;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = Long.hashCode(startSegment);
+            h = 31 * h + Long.hashCode(destinationSegment);
+            h = 31 * h + positions;
+            h = 31 * h + metric.hashCode();
+            return 31 * h + profile.hashCode();
+        }
+    }
+
+    /**
+     * A read-only list of vertex IDs backed by a primitive array.
+     */
+    private static class Route extends AbstractList<Long> {
+        private final long[] vertices;
+
+        Route(List<Long> route) {
+            vertices = new long[route.size()];
+            int i = 0;
+            for (long v : route) {
+                vertices[i] = v;
+                i += 1;
+            }
+        }
+
+        @Override
+        public Long get(int index) {
+            return vertices[index];
+        }
+
+        @Override
+        public int size() {
+            return vertices.length;
+        }
+
+        long bytes() {
+            return ENTRY_OVERHEAD_BYTES + (long) Long.BYTES * vertices.length;
+        }
+    }
+}
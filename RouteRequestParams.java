@@ -19,10 +19,22 @@ public class RouteRequestParams {
     public final double endLat;
     /** The end point longitude. */
     public final double endLon;
+    /** The search strategy to route with. */
+    public final Router.Algorithm algorithm;
+    /** The quantity the route should be shortest in. */
+    public final Router.Metric metric;
+    /** The way of travelling to route for. */
+    public final Router.Profile profile;
+    /** The most alternative routes to find besides the shortest one. */
+    public final int alternatives;
 
     /**
      * Validate and return a parameter map of the required request parameters.
-     * Requires that all input parameters are doubles.
+     * Requires that all required input parameters are doubles. The optional algorithm, metric and
+     * profile parameters name a <code>Router.Algorithm</code>, a <code>Router.Metric</code> and a
+     * <code>Router.Profile</code>, case-insensitively, and the optional alternatives parameter is
+     * an integer between 0 and <code>MAX_ALTERNATIVES</code>. Alternatives are always found with
+     * bidirectional Dijkstra, so a request for them may not name another algorithm.
      * @param req The queryParams map from a Spark HTTP Request.
      * @return A populated map of input parameter to it's numerical value.
      */
@@ -42,6 +54,56 @@ public class RouteRequestParams {
                 }
             }
         }
+        if (req.containsKey("algorithm")) {
+            try {
+                String name = req.get("algorithm")[0].toUpperCase();
+                builder.setAlgorithm(Router.Algorithm.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown algorithm.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("metric")) {
+            try {
+                String name = req.get("metric")[0].toUpperCase();
+                builder.setMetric(Router.Metric.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown metric.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("profile")) {
+            try {
+                String name = req.get("profile")[0].toUpperCase();
+                builder.setProfile(Router.Profile.valueOf(name));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                String msg = "Incorrect parameters: unknown profile.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if (req.containsKey("alternatives")) {
+            int alternatives;
+            try {
+                alternatives = Integer.parseInt(req.get("alternatives")[0]);
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                e.printStackTrace();
+                String msg = "Incorrect parameters: unable to parse alternatives.";
+                throw new IllegalArgumentException(msg);
+            }
+            if (alternatives < 0 || alternatives > MAX_ALTERNATIVES) {
+                String msg = String.format(
+                        "Incorrect parameters: alternatives must be between 0 and %d.",
+                        MAX_ALTERNATIVES);
+                throw new IllegalArgumentException(msg);
+            }
+            builder.setAlternatives(alternatives);
+            if (alternatives > 0 && req.containsKey("algorithm")
+                    && builder.algorithm != Router.Algorithm.BIDIRECTIONAL_DIJKSTRA) {
+                String msg = "Incorrect parameters: alternatives are only found with "
+                        + "bidirectional_dijkstra.";
+                throw new IllegalArgumentException(msg);
+            }
+        }
         return builder.create();
     }
 
@@ -50,18 +112,29 @@ public class RouteRequestParams {
      * instance. Use the the factory method, from, instead.
      */
     private RouteRequestParams() {
-        this(0.0, 0.0, 0.0, 0.0);
+        this(0.0, 0.0, 0.0, 0.0, Router.Algorithm.A_STAR, Router.Metric.DISTANCE,
+                Router.Profile.DRIVE, 0);
     }
 
-    private RouteRequestParams(double startLat, double startLon, double endLat, double endLon) {
+    private RouteRequestParams(double startLat, double startLon, double endLat, double endLon,
+                               Router.Algorithm algorithm, Router.Metric metric,
+                               Router.Profile profile, int alternatives) {
         this.startLat = startLat;
         this.startLon = startLon;
         this.endLat = endLat;
         this.endLon = endLon;
+        this.algorithm = algorithm;
+        this.metric = metric;
+        this.profile = profile;
+        this.alternatives = alternatives;
     }
 
     public static class Builder {
         private double startLat, startLon, endLat, endLon;
+        private Router.Algorithm algorithm = Router.Algorithm.A_STAR;
+        private Router.Metric metric = Router.Metric.DISTANCE;
+        private Router.Profile profile = Router.Profile.DRIVE;
+        private int alternatives = 0;
 
         /**
          * Creates a RouteRequestParams.Builder instance that can be used to build
@@ -71,7 +144,8 @@ public class RouteRequestParams {
         }
 
         public RouteRequestParams create() {
-            return new RouteRequestParams(startLat, startLon, endLat, endLon);
+            return new RouteRequestParams(startLat, startLon, endLat, endLon, algorithm,
+                    metric, profile, alternatives);
         }
 
         public Builder setStartLat(double value) {
@@ -94,6 +168,26 @@ public class RouteRequestParams {
             return this;
         }
 
+        public Builder setAlgorithm(Router.Algorithm value) {
+            this.algorithm = value;
+            return this;
+        }
+
+        public Builder setMetric(Router.Metric value) {
+            this.metric = value;
+            return this;
+        }
+
+        public Builder setProfile(Router.Profile value) {
+            this.profile = value;
+            return this;
+        }
+
+        public Builder setAlternatives(int value) {
+            this.alternatives = value;
+            return this;
+        }
+
         private Builder set(String field, double value) {
             switch (field) {
                 case "start_lat":
@@ -120,4 +214,7 @@ public class RouteRequestParams {
     private static final String[] REQUIRED_PARAMS = {
         "start_lat", "start_lon", "end_lat", "end_lon"
     };
+
+    /** The most alternative routes a request may ask for. */
+    private static final int MAX_ALTERNATIVES = 5;
 }
@@ -1,3 +1,5 @@
+import java.util.List;
+
 /**
  * The RouteResultParams contains the fields computed by Router.shortestPath and
  * Router.routeDirections (stored as an HTML-friendly String) for serialization by Gson.
@@ -7,10 +9,24 @@
  * @author Kevin Lin
  */
 class RouteResultParams {
+    /** How a route request ended. */
+    enum Status {
+        /** A route was found. */
+        FOUND,
+        /** The destination cannot be reached from the start. */
+        UNREACHABLE,
+        /** The searches ran over the request's budget before finding the route. */
+        TOO_EXPENSIVE
+    }
+
     /** Whether or not the route was successfully computed. */
     private final boolean routingSuccess;
+    /** How the request ended. */
+    private final Status status;
     /** The HTML-friendly String representation of the navigation directions. */
     private final String directions;
+    /** The alternatives to the route, each a list of vertex IDs, or null if none were asked for. */
+    private final long[][] alternatives;
 
     /** Private constructor to prevent direct instantiation of a RouteResultParams instance. */
     private RouteResultParams() {
@@ -23,7 +39,40 @@ class RouteResultParams {
      * @param directions The directions field.
      */
     RouteResultParams(boolean routingSuccess, String directions) {
-        this.routingSuccess = routingSuccess;
+        this(routingSuccess, directions, null);
+    }
+
+    /**
+     * Constructs a RouteResultParams instance that also carries alternative routes.
+     * @param routingSuccess The routingSuccess field.
+     * @param directions The directions field.
+     * @param alternatives The alternative routes, each a list of vertex IDs.
+     */
+    RouteResultParams(boolean routingSuccess, String directions, List<List<Long>> alternatives) {
+        this(routingSuccess ? Status.FOUND : Status.UNREACHABLE, directions, alternatives);
+    }
+
+    private RouteResultParams(Status status, String directions, List<List<Long>> alternatives) {
+        this.routingSuccess = status == Status.FOUND;
+        this.status = status;
         this.directions = directions;
+        if (alternatives == null) {
+            this.alternatives = null;
+        } else {
+            this.alternatives = new long[alternatives.size()][];
+            for (int i = 0; i < alternatives.size(); i += 1) {
+                this.alternatives[i] = alternatives.get(i).stream()
+                        .mapToLong(Long::longValue).toArray();
+            }
+        }
+    }
+
+    /**
+     * Returns the result of a request whose searches ran over its budget, with the reason in
+     * place of the directions.
+     * @param reason Why the searches were stopped.
+     */
+    static RouteResultParams tooExpensive(String reason) {
+        return new RouteResultParams(Status.TOO_EXPENSIVE, reason, null);
     }
 }
@@ -0,0 +1,164 @@
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The routing state one client keeps between route requests, so that dragging an endpoint of a
+ * route does not restart the search on every move.
+ * <p>
+ * When a request moves exactly one end of the previous request, the session grows a
+ * shortest-path tree rooted at that fixed end with Dijkstra's algorithm, and keeps it. Every
+ * later request with the same fixed end is answered from the tree: if the moved end is already
+ * settled, the route is read off the parent pointers, and otherwise the kept search resumes from
+ * its fringe just until the moved end is settled. Roads are undirected, so a tree rooted at the
+ * destination serves drags of the origin just as well. A Dijkstra tree does not depend on where
+ * the search is headed, which is what makes resuming it valid; the first drag pays for one
+ * search, and the rest cost little more than the length of the route.
+ * <p>
+ * Each tree owns its own search arrays, a few tens of bytes per vertex, so sessions are kept in a
+ * bounded store by the server. A session is not thread-safe; callers synchronize on it.
+ */
+class RouteSession {
+    /** The ends of the previous request, and what it was routed for. */
+    private GraphDB.Snap lastStart;
+    private GraphDB.Snap lastDestination;
+    private Router.Metric lastMetric;
+    /** The kept trees, rooted at the fixed start and the fixed destination. */
+    private Tree fromStart;
+    private Tree fromDestination;
+    /** The search budget of the latest request. */
+    private final AtomicReference<SearchBudget> inFlight = new AtomicReference<>();
+
+    /**
+     * Makes <code>budget</code> the budget of the session's latest request and cancels the one
+     * before it, whose searches, if still running, are for a route the client no longer wants.
+     * Unlike the rest of the session, this needs no synchronization, so a new request can cancel
+     * the one holding the session.
+     */
+    void supersede(SearchBudget budget) {
+        SearchBudget previous = inFlight.getAndSet(budget);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    /**
+     * Returns the shortest path between two snapped points on the same component from a kept
+     * tree, if exactly one end moved since the previous request, and remembers the ends for the
+     * next request.
+     *
+     * @return The vertex IDs of the shortest path, or <code>null</code> if both ends moved or
+     * neither did, in which case the caller routes without the session.
+     */
+    List<Long> reroute(GraphDB g, GraphDB.Snap start, GraphDB.Snap destination,
+                       Router.Metric metric) {
+        boolean startFixed = metric == lastMetric && sameSnap(start, lastStart);
+        boolean destinationFixed = metric == lastMetric && sameSnap(destination, lastDestination);
+        remember(start, destination, metric);
+        if (startFixed && !destinationFixed) {
+            if (fromStart == null || !sameSnap(start, fromStart.root)) {
+                fromStart = new Tree(g, start, metric);
+            }
+            fromDestination = null;
+            return fromStart.pathTo(g, destination, false);
+        }
+        if (destinationFixed && !startFixed) {
+            if (fromDestination == null || !sameSnap(destination, fromDestination.root)) {
+                fromDestination = new Tree(g, destination, metric);
+            }
+            fromStart = null;
+            return fromDestination.pathTo(g, start, true);
+        }
+        if (!startFixed) {
+            /* Both ends moved, so the client is no longer dragging either of them. */
+            fromStart = null;
+            fromDestination = null;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the ends of a request answered without the session, such as from the route
+     * cache, so that the next request can tell which end moved.
+     */
+    void remember(GraphDB.Snap start, GraphDB.Snap destination, Router.Metric metric) {
+        lastStart = start;
+        lastDestination = destination;
+        lastMetric = metric;
+    }
+
+    private static boolean sameSnap(GraphDB.Snap a, GraphDB.Snap b) {
+        return a != null && b != null && a.fromVertex == b.fromVertex
+                && a.toVertex == b.toVertex && a.fraction == b.fraction && a.profile == b.profile;
+    }
+
+    /**
+     * A shortest-path tree rooted at a snapped point, grown by Dijkstra's algorithm only as far
+     * as the points asked about so far need.
+     */
+    private static class Tree {
+        private final GraphDB.Snap root;
+        private final Router.Metric metric;
+        private final double[] weights;
+        private final SearchContext search;
+
+        Tree(GraphDB g, GraphDB.Snap root, Router.Metric metric) {
+            this.root = root;
+            this.metric = metric;
+            this.weights = g.edgeWeights(root.profile, metric);
+            this.search = SearchContext.detached(g.vertexCount());
+            int[] seeds = {root.fromVertex, root.toVertex};
+            double[] seedDistances = {root.fromWeight(metric), root.toWeight(metric)};
+            for (int i = 0; i < seeds.length; i += 1) {
+                if (seedDistances[i] < search.distance(seeds[i])) {
+                    search.reach(seeds[i], seedDistances[i], -1);
+                    search.fringe().addOrDecrease(seeds[i], seedDistances[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns the shortest path between the root and <code>target</code>, growing the tree
+         * until no vertex left in its fringe can lead to a shorter one.
+         *
+         * @param towardsRoot Whether to list the path from <code>target</code> to the root,
+         *                    rather than from the root to <code>target</code>.
+         */
+        List<Long> pathTo(GraphDB g, GraphDB.Snap target, boolean towardsRoot) {
+            IndexedMinHeap fringe = search.fringe();
+            SearchBudget budget = SearchBudget.current();
+            while (true) {
+                double best = Math.min(
+                        search.distance(target.fromVertex) + target.fromWeight(metric),
+                        search.distance(target.toVertex) + target.toWeight(metric));
+                if (fringe.isEmpty() || fringe.peekKey() >= best) {
+                    break;
+                }
+                budget.charge();
+                int v = fringe.poll();
+                double distanceToV = search.distance(v);
+                for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                    int w = g.edgeTarget(e);
+                    if (search.settled(w)) {
+                        continue;
+                    }
+                    double newDistance = distanceToV + weights[e];
+                    if (newDistance < search.distance(w)) {
+                        search.reach(w, newDistance, v);
+                        fringe.addOrDecrease(w, newDistance);
+                    }
+                }
+            }
+            double viaFrom = search.distance(target.fromVertex) + target.fromWeight(metric);
+            double viaTo = search.distance(target.toVertex) + target.toWeight(metric);
+            if (viaFrom == Double.POSITIVE_INFINITY && viaTo == Double.POSITIVE_INFINITY) {
+                return Collections.emptyList();
+            }
+            int end = viaFrom <= viaTo ? target.fromVertex : target.toVertex;
+            LinkedList<Long> path = new LinkedList<>();
+            Router.backtrack(g, search, end, path, !towardsRoot);
+            return path;
+        }
+    }
+}
@@ -1,11 +1,16 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +19,84 @@ import java.util.regex.Pattern;
  * finding routes between two points on the map.
  */
 public class Router {
+    /**
+     * The search strategies <code>shortestPath</code> can use. All of them return a shortest
+     * path; they differ in how much of the graph they explore to find it.
+     */
+    public enum Algorithm {
+        /** Dijkstra's algorithm, which explores outwards from the start in every direction. */
+        DIJKSTRA,
+        /**
+         * A* search, which steers Dijkstra's algorithm towards the destination using the
+         * great-circle distance to it as a lower bound on the remaining distance.
+         */
+        A_STAR,
+        /** Dijkstra's algorithm run from both ends at once until the two searches meet. */
+        BIDIRECTIONAL_DIJKSTRA,
+        /** Bidirectional search steered by the great-circle distance to both ends. */
+        BIDIRECTIONAL_A_STAR,
+        /**
+         * Bidirectional upward search over Contraction Hierarchies. The graph is contracted the
+         * first time this is used.
+         */
+        CONTRACTION_HIERARCHIES,
+        /**
+         * A* search steered by landmark distances as well as the great-circle distance, which
+         * estimates the remaining distance far better where roads have to detour. The landmark
+         * tables are loaded, or computed and saved, the first time this is used.
+         */
+        ALT
+    }
+
+    /**
+     * The quantities a route can be shortest in. Searches read the weight of every edge under
+     * the chosen metric from a table precomputed when the graph is built.
+     */
+    public enum Metric {
+        /** The length of the route in miles. */
+        DISTANCE,
+        /**
+         * The time the route takes in seconds, driving every road at its posted
+         * <code>maxspeed</code>, or at a typical speed for its kind of highway if it has none.
+         */
+        TIME
+    }
+
+    /**
+     * The ways of travelling a route can be planned for. Every profile routes over the same
+     * graph; each edge records which profiles may use it, and each profile has its own travel
+     * time per edge.
+     */
+    public enum Profile {
+        /** Driving, on the roads open to cars, at their speed limits. */
+        DRIVE,
+        /** Cycling, on roads and cycleways open to bicycles, at a steady cycling speed. */
+        BIKE,
+        /** Walking, on roads, footways and paths open to pedestrians, at a walking pace. */
+        WALK
+    }
+
+    /**
+     * How much longer than the shortest route an alternative route may be, as a fraction of the
+     * shortest route's weight.
+     */
+    static final double MAX_STRETCH = 0.25;
+    /**
+     * The largest fraction of an alternative route's weight that may run along roads of routes
+     * already chosen.
+     */
+    static final double MAX_SHARING = 0.8;
+    /**
+     * The smallest fraction of an alternative route's weight that must be a plateau, a stretch
+     * that is the shortest way between its own ends. Shorter plateaus mean a detour that a
+     * driver would see as pointless.
+     */
+    static final double MIN_PLATEAU = 0.2;
+    /**
+     * The most plateaus, cheapest first, checked against the other filters per request.
+     */
+    private static final int MAX_CANDIDATES = 64;
+
     /**
      * Return a <code>List</code> of vertex IDs corresponding to the shortest path from a given
      * starting coordinate and destination coordinate.
@@ -28,110 +111,973 @@ public class Router {
     public static List<Long> shortestPath(GraphDB g,
                                           double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, Algorithm.A_STAR);
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the shortest path in miles from a
+     * given starting coordinate and destination coordinate, found with the given algorithm.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param stlon     The longitude of the starting coordinate.
+     * @param stlat     The latitude of the starting coordinate.
+     * @param destlon   The longitude of the destination coordinate.
+     * @param destlat   The latitude of the destination coordinate.
+     * @param algorithm The search strategy to use.
+     * @return The <code>List</code> of vertex IDs corresponding to the shortest path, or an empty
+     * list if the destination cannot be reached.
+     */
+    public static List<Long> shortestPath(GraphDB g,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, algorithm, Metric.DISTANCE);
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the shortest driving route from a
+     * given starting coordinate and destination coordinate under the given metric, found with the
+     * given algorithm.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param stlon     The longitude of the starting coordinate.
+     * @param stlat     The latitude of the starting coordinate.
+     * @param destlon   The longitude of the destination coordinate.
+     * @param destlat   The latitude of the destination coordinate.
+     * @param algorithm The search strategy to use.
+     * @param metric    The quantity to minimize.
+     * @return The <code>List</code> of vertex IDs corresponding to the shortest path, or an empty
+     * list if the destination cannot be reached.
+     */
+    public static List<Long> shortestPath(GraphDB g,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm, Metric metric) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, algorithm, metric,
+                Profile.DRIVE);
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the shortest path for the given
+     * profile from a given starting coordinate and destination coordinate under the given metric,
+     * found with the given algorithm.
+     * <p>
+     * Both coordinates are snapped to the nearest point on a way open to the profile, which may
+     * lie in the middle of a segment. The search starts from both endpoints of the starting
+     * segment, each already carrying the distance from the snapped point to it, and finishes at
+     * whichever endpoint of the destination segment gives the shorter total. It stops as soon as
+     * no vertex left in the fringe can lead to a shorter route, and only records distances for
+     * the vertices it reaches.
+     * <p>
+     * Both ends are snapped onto the same connected component of the profile's ways, so the
+     * search never runs out of vertices without finding the destination. If the nearest ways to
+     * the two coordinates are not connected to each other, both coordinates are snapped onto the
+     * largest component.
+     * <p>
+     * Routes are cached per graph by where their ends snapped to, so repeated requests between
+     * the same places skip the search; see <code>RouteCache</code>.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param stlon     The longitude of the starting coordinate.
+     * @param stlat     The latitude of the starting coordinate.
+     * @param destlon   The longitude of the destination coordinate.
+     * @param destlat   The latitude of the destination coordinate.
+     * @param algorithm The search strategy to use.
+     * @param metric    The quantity to minimize.
+     * @param profile   The way of travelling.
+     * @return The <code>List</code> of vertex IDs corresponding to the shortest path, or an empty
+     * list if the destination cannot be reached.
+     */
+    public static List<Long> shortestPath(GraphDB g,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm, Metric metric, Profile profile) {
+        GraphDB.Snap[] ends = snapEnds(g, stlon, stlat, destlon, destlat, profile);
+        if (ends == null) {
+            return Collections.emptyList();
+        }
+        return cachedRoute(g, ends[0], ends[1], algorithm, metric);
+    }
+
+    /**
+     * Builds the preprocessed tables <code>algorithm</code> needs for <code>profile</code> and
+     * <code>metric</code>, if it needs any and they are not built yet, and waits for them. Call
+     * it before the budget of a request starts, so that the first request for an algorithm is
+     * not charged for preprocessing the whole graph.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param algorithm The search strategy about to be used.
+     * @param metric    The quantity it will minimize.
+     * @param profile   The way of travelling.
+     */
+    public static void prepare(GraphDB g, Algorithm algorithm, Metric metric, Profile profile) {
+        if (algorithm == Algorithm.CONTRACTION_HIERARCHIES) {
+            g.contractionHierarchy(profile, metric);
+        } else if (algorithm == Algorithm.ALT) {
+            g.landmarks(profile, metric);
+        }
+    }
+
+    /**
+     * Return a <code>List</code> of vertex IDs corresponding to the shortest path, like the
+     * other <code>shortestPath</code> methods, reusing the search trees <code>session</code>
+     * kept from its previous requests. The route cache is asked first, so repeated requests cost
+     * a lookup. On a miss, if exactly one end of the route moved since the session's previous
+     * request, the route is answered from a shortest-path tree rooted at the other end, which is
+     * grown as needed and kept for the next request; see <code>RouteSession</code>. Otherwise
+     * the route is found with <code>algorithm</code> as usual. Either way it is then cached.
+     *
+     * @param g         <code>GraphDB</code> data source.
+     * @param session   The routing state of the client asking.
+     * @param stlon     The longitude of the starting coordinate.
+     * @param stlat     The latitude of the starting coordinate.
+     * @param destlon   The longitude of the destination coordinate.
+     * @param destlat   The latitude of the destination coordinate.
+     * @param algorithm The search strategy to use when no kept tree applies.
+     * @param metric    The quantity to minimize.
+     * @param profile   The way of travelling.
+     * @return The <code>List</code> of vertex IDs corresponding to the shortest path, or an empty
+     * list if the destination cannot be reached.
+     */
+    public static List<Long> shortestPath(GraphDB g, RouteSession session,
+                                          double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          Algorithm algorithm, Metric metric, Profile profile) {
+        GraphDB.Snap[] ends = snapEnds(g, stlon, stlat, destlon, destlat, profile);
+        if (ends == null) {
+            return Collections.emptyList();
+        }
+        RouteCache.Key key = new RouteCache.Key(ends[0], ends[1], metric);
+        List<Long> route = g.routeCache().get(key);
+        if (route != null) {
+            synchronized (session) {
+                session.remember(ends[0], ends[1], metric);
+            }
+            return route;
+        }
+        synchronized (session) {
+            route = session.reroute(g, ends[0], ends[1], metric);
+        }
+        if (route == null) {
+            route = route(g, ends[0], ends[1], algorithm, metric);
+        }
+        return g.routeCache().put(key, route);
+    }
 
-        //HashSet<Long> visitedOfEverything = new HashSet<>();
-        HashSet<Long> visited = new HashSet<>();
-        HashMap<Long, Double> distanceToMap = new HashMap<>();
-        HashMap<Long, Long> edgeToMap = new HashMap<>();
-        PriorityQueue<PriorityQueueObject> fringe = new PriorityQueue(g.nodeHashMap.size(),
-                new PriorityQueueObjectComparator());
-
-
-        Long startingID = g.closest(stlon, stlat);
-        Long endingID = g.closest(destlon, destlat);
-
-        GraphDB.Node startingNode = g.nodeHashMap.get(startingID);
-        GraphDB.Node destinationNode = g.nodeHashMap.get(endingID);
-
-        /** Initializes the hashmaps */
-        for (Long key : g.nodeHashMap.keySet()) {
-            distanceToMap.put(g.nodeHashMap.get(key).nodeID, Double.MAX_VALUE);
-            edgeToMap.put(g.nodeHashMap.get(key).nodeID, null);
-            PriorityQueueObject newObject =
-                    new PriorityQueueObject(g.nodeHashMap.get(key).nodeID, Double.MAX_VALUE);
-            fringe.add(newObject);
-            //visitedOfEverything.add(g.nodeHashMap.get(key).nodeID);
-        }
-
-        /** Puts starting vertex */
-        long vertexValue = startingNode.nodeID;
-        visited.add(vertexValue);
-        LinkedList<Long> listOfNeighbors = startingNode.adjList;
-        for (int i = 0; i < listOfNeighbors.size(); i = i + 1) {
-            fringe.add(new PriorityQueueObject(listOfNeighbors.get(i),
-                    g.distance(startingNode.nodeID, listOfNeighbors.get(i))));
-            distanceToMap.replace(listOfNeighbors.get(i),
-                    g.distance(startingNode.nodeID, listOfNeighbors.get(i)));
-            edgeToMap.replace(listOfNeighbors.get(i), startingNode.nodeID);
-        }
-        /** Iterates through the rest of the vertexes */
-        while (visited.size() != g.nodeHashMap.size()) {
-            PriorityQueueObject poppedObject = fringe.poll();
-            visited.add(poppedObject.nodeID);
-            GraphDB.Node nextNode = g.nodeHashMap.get(poppedObject.nodeID);
-            for (int i = 0; i < nextNode.adjList.size(); i = i + 1) {
-                if (visited.contains(nextNode.adjList.get(i))) {
+    /**
+     * Snaps both ends of a route onto ways open to <code>profile</code> in the same component.
+     *
+     * @return The snapped start and destination, or <code>null</code> if even the nearest
+     * points on the largest component are not connected.
+     */
+    private static GraphDB.Snap[] snapEnds(GraphDB g, double stlon, double stlat,
+                                           double destlon, double destlat, Profile profile) {
+        GraphDB.Snap start = g.snap(stlon, stlat, profile, false);
+        GraphDB.Snap destination = g.snap(destlon, destlat, profile, false);
+        if (g.component(profile, start.fromVertex)
+                != g.component(profile, destination.fromVertex)) {
+            /* At least one end is on a road fragment cut off from the other; route between the
+             * nearest points on the main road network instead. */
+            start = g.snap(stlon, stlat, profile, true);
+            destination = g.snap(destlon, destlat, profile, true);
+        }
+        if (g.component(profile, start.fromVertex)
+                != g.component(profile, destination.fromVertex)) {
+            return null;
+        }
+        return new GraphDB.Snap[]{start, destination};
+    }
+
+    /**
+     * Returns the shortest path between two snapped points from the route cache, finding and
+     * caching it on a miss.
+     */
+    private static List<Long> cachedRoute(GraphDB g, GraphDB.Snap start,
+                                          GraphDB.Snap destination, Algorithm algorithm,
+                                          Metric metric) {
+        RouteCache.Key key = new RouteCache.Key(start, destination, metric);
+        List<Long> cached = g.routeCache().get(key);
+        if (cached != null) {
+            return cached;
+        }
+        return g.routeCache().put(key, route(g, start, destination, algorithm, metric));
+    }
+
+    /**
+     * Returns the shortest path under <code>metric</code> between two points snapped for the
+     * same profile onto the same component, found with the given algorithm.
+     */
+    private static List<Long> route(GraphDB g, GraphDB.Snap start, GraphDB.Snap destination,
+                                    Algorithm algorithm, Metric metric) {
+        if (algorithm == Algorithm.CONTRACTION_HIERARCHIES) {
+            return g.contractionHierarchy(start.profile, metric)
+                    .shortestPath(g, start, destination);
+        }
+        if (algorithm == Algorithm.BIDIRECTIONAL_DIJKSTRA
+                || algorithm == Algorithm.BIDIRECTIONAL_A_STAR) {
+            return bidirectionalPath(g, start, destination,
+                    algorithm == Algorithm.BIDIRECTIONAL_A_STAR, metric);
+        }
+        boolean useHeuristic = algorithm == Algorithm.A_STAR || algorithm == Algorithm.ALT;
+        Landmarks landmarks =
+                algorithm == Algorithm.ALT ? g.landmarks(start.profile, metric) : null;
+        double[] weights = g.edgeWeights(start.profile, metric);
+
+        SearchContext search = SearchContext.forward(g.vertexCount());
+        IndexedMinHeap fringe = search.fringe();
+        SearchBudget budget = SearchBudget.current();
+
+        /** Puts both ends of the starting segment */
+        int[] seeds = {start.fromVertex, start.toVertex};
+        double[] seedDistances = {start.fromWeight(metric), start.toWeight(metric)};
+        for (int i = 0; i < seeds.length; i += 1) {
+            if (seedDistances[i] < search.distance(seeds[i])) {
+                search.reach(seeds[i], seedDistances[i], -1);
+                fringe.addOrDecrease(seeds[i], seedDistances[i]
+                        + heuristic(g, seeds[i], destination, useHeuristic, landmarks, metric));
+            }
+        }
+
+        /** Iterates until no vertex in the fringe can beat the best route found */
+        double bestDistance = Double.MAX_VALUE;
+        int destinationVertex = -1;
+        while (!fringe.isEmpty() && fringe.peekKey() < bestDistance) {
+            budget.charge();
+            int v = fringe.poll();
+            double distanceToV = search.distance(v);
+            if (v == destination.fromVertex
+                    && distanceToV + destination.fromWeight(metric) < bestDistance) {
+                bestDistance = distanceToV + destination.fromWeight(metric);
+                destinationVertex = v;
+            }
+            if (v == destination.toVertex
+                    && distanceToV + destination.toWeight(metric) < bestDistance) {
+                bestDistance = distanceToV + destination.toWeight(metric);
+                destinationVertex = v;
+            }
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                if (search.settled(w)) {
                     continue;
                 }
                 /** Updates priority queue if a smaller distance was found */
-                double newDistance = distanceToMap.get(nextNode.nodeID)
-                        + g.distance(nextNode.nodeID, nextNode.adjList.get(i));
-                if (newDistance < distanceToMap.get(nextNode.adjList.get(i))) {
-                    distanceToMap.replace(nextNode.adjList.get(i), newDistance);
-                    edgeToMap.replace(nextNode.adjList.get(i), poppedObject.nodeID);
-                    fringe.add(new PriorityQueueObject(nextNode.adjList.get(i), newDistance));
+                double newDistance = distanceToV + weights[e];
+                if (newDistance < search.distance(w)) {
+                    search.reach(w, newDistance, v);
+                    fringe.addOrDecrease(w, newDistance
+                            + heuristic(g, w, destination, useHeuristic, landmarks, metric));
                 }
             }
         }
+        if (destinationVertex == -1) {
+            return Collections.emptyList();
+        }
         /** Adds to the list */
         LinkedList<Long> shortestPathList = new LinkedList<>();
-        shortestPathList.addFirst(destinationNode.nodeID);
-        Long copy = destinationNode.nodeID;
-        while (!shortestPathList.contains(startingNode.nodeID)) {
-            long edge = edgeToMap.get(copy);
-            shortestPathList.addFirst(edge);
-            copy = edge;
+        backtrack(g, search, destinationVertex, shortestPathList, true);
+        return shortestPathList;
+    }
+
+    /**
+     * Returns the shortest path between two snapped points found by growing a forward search from
+     * the start and a backward search from the destination, always advancing the side whose next
+     * vertex has the smaller priority. Every time a vertex is reached from both sides, the route
+     * through it is a candidate; the search stops once the two smallest priorities together can
+     * no longer beat the best candidate. Roads are undirected, so the backward search follows the
+     * same adjacency as the forward one.
+     * <p>
+     * With <code>useHeuristic</code>, both searches use the average of the two great-circle
+     * estimates, (distance to destination - distance to start) / 2, as their potential. That
+     * potential is consistent for both directions at once, which keeps the same stopping rule
+     * correct.
+     */
+    private static List<Long> bidirectionalPath(GraphDB g, GraphDB.Snap start,
+                                                GraphDB.Snap destination, boolean useHeuristic,
+                                                Metric metric) {
+        double[] weights = g.edgeWeights(start.profile, metric);
+        SearchContext[] search = {
+            SearchContext.forward(g.vertexCount()), SearchContext.backward(g.vertexCount())};
+        SearchBudget budget = SearchBudget.current();
+        GraphDB.Snap[] ends = {start, destination};
+        /* Side 0 searches forward from the start; side 1 backward from the destination. The
+         * backward potential is the negation of the forward one. */
+        double[] sign = {1.0, -1.0};
+
+        for (int side = 0; side < 2; side += 1) {
+            int[] seeds = {ends[side].fromVertex, ends[side].toVertex};
+            double[] seedDistances = {
+                ends[side].fromWeight(metric), ends[side].toWeight(metric)};
+            for (int i = 0; i < seeds.length; i += 1) {
+                if (seedDistances[i] < search[side].distance(seeds[i])) {
+                    search[side].reach(seeds[i], seedDistances[i], -1);
+                    search[side].fringe().addOrDecrease(seeds[i], seedDistances[i]
+                            + sign[side] * potential(g, seeds[i], start, destination,
+                            useHeuristic, metric));
+                }
+            }
         }
+        double bestDistance = Double.MAX_VALUE;
+        int meetingVertex = -1;
+        for (int v : new int[]{start.fromVertex, start.toVertex}) {
+            if (search[0].distance(v) + search[1].distance(v) < bestDistance) {
+                bestDistance = search[0].distance(v) + search[1].distance(v);
+                meetingVertex = v;
+            }
+        }
+
+        IndexedMinHeap[] fringe = {search[0].fringe(), search[1].fringe()};
+        while (!fringe[0].isEmpty() && !fringe[1].isEmpty()
+                && fringe[0].peekKey() + fringe[1].peekKey() < bestDistance) {
+            int side = fringe[0].peekKey() <= fringe[1].peekKey() ? 0 : 1;
+            int other = 1 - side;
+            budget.charge();
+            int v = fringe[side].poll();
+            double distanceToV = search[side].distance(v);
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                if (search[side].settled(w)) {
+                    continue;
+                }
+                double newDistance = distanceToV + weights[e];
+                if (newDistance < search[side].distance(w)) {
+                    search[side].reach(w, newDistance, v);
+                    fringe[side].addOrDecrease(w, newDistance + sign[side]
+                            * potential(g, w, start, destination, useHeuristic, metric));
+                    if (newDistance + search[other].distance(w) < bestDistance) {
+                        bestDistance = newDistance + search[other].distance(w);
+                        meetingVertex = w;
+                    }
+                }
+            }
+        }
+        if (meetingVertex == -1) {
+            return Collections.emptyList();
+        }
+        /** Adds the forward half, then the backward half */
+        LinkedList<Long> shortestPathList = new LinkedList<>();
+        backtrack(g, search[0], meetingVertex, shortestPathList, true);
+        backtrack(g, search[1], search[1].parent(meetingVertex), shortestPathList, false);
         return shortestPathList;
     }
 
-    public static class PriorityQueueObjectComparator implements Comparator<PriorityQueueObject> {
-        // Overriding compare()method of Comparator
-        // for descending order of cgpa
+    /**
+     * Adds the IDs of the vertices on the search tree path from vertex <code>v</code> back to the
+     * root of <code>search</code> to <code>path</code>: at the front, so that the path reads from
+     * the root, or at the back, so that it reads towards the root. Adds nothing if
+     * <code>v</code> is -1. Parents must be recorded as vertices.
+     */
+    static void backtrack(GraphDB g, SearchContext search, int v, LinkedList<Long> path,
+                          boolean atFront) {
+        for (; v != -1; v = search.parent(v)) {
+            if (atFront) {
+                path.addFirst(g.vertexId(v));
+            } else {
+                path.addLast(g.vertexId(v));
+            }
+        }
+    }
+
+    /**
+     * Return up to <code>k</code> alternatives to the shortest route between two coordinates,
+     * after the shortest route itself. Alternatives are found with the plateau method from a
+     * single pair of searches rather than <code>k</code> separate ones: a forward Dijkstra tree
+     * from the start and a backward one from the destination are both grown to
+     * <code>1 + MAX_STRETCH</code> times the weight of the shortest route. A chain of edges that
+     * is in both trees is a plateau, and the route through it, down the forward tree to its first
+     * vertex and up the backward tree from there, is a candidate.
+     * <p>
+     * Candidates are taken cheapest first. A candidate is kept only if it is at most
+     * <code>MAX_STRETCH</code> longer than the shortest route, it does not visit a vertex twice,
+     * its plateau is at least <code>MIN_PLATEAU</code> of its weight, so it has no pointless
+     * detours, and at most <code>MAX_SHARING</code> of its weight runs along routes already kept.
+     * <p>
+     * The trees are always grown with Dijkstra's algorithm from both ends, as
+     * <code>Algorithm.BIDIRECTIONAL_DIJKSTRA</code> would, since plateaus need the full trees
+     * rather than searches steered at one route. The shortest route is put in the route cache,
+     * so a later request for it alone is a cache hit.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param stlon   The longitude of the starting coordinate.
+     * @param stlat   The latitude of the starting coordinate.
+     * @param destlon The longitude of the destination coordinate.
+     * @param destlat The latitude of the destination coordinate.
+     * @param k       The most alternatives to return.
+     * @param metric  The quantity to minimize.
+     * @param profile The way of travelling.
+     * @return The routes as lists of vertex IDs, the shortest first and then the alternatives in
+     * increasing weight, or an empty list if the destination cannot be reached.
+     */
+    public static List<List<Long>> alternatives(GraphDB g,
+                                                double stlon, double stlat,
+                                                double destlon, double destlat,
+                                                int k, Metric metric, Profile profile) {
+        GraphDB.Snap[] ends = snapEnds(g, stlon, stlat, destlon, destlat, profile);
+        if (ends == null) {
+            return Collections.emptyList();
+        }
+        double[] weights = g.edgeWeights(profile, metric);
+        SearchContext[] search = {
+            SearchContext.forward(g.vertexCount()), SearchContext.backward(g.vertexCount())};
+        SearchBudget budget = SearchBudget.current();
+        for (int side = 0; side < 2; side += 1) {
+            int[] seeds = {ends[side].fromVertex, ends[side].toVertex};
+            double[] seedDistances = {
+                ends[side].fromWeight(metric), ends[side].toWeight(metric)};
+            for (int i = 0; i < seeds.length; i += 1) {
+                if (seedDistances[i] < search[side].distance(seeds[i])) {
+                    search[side].reach(seeds[i], seedDistances[i], -1);
+                    search[side].fringe().addOrDecrease(seeds[i], seedDistances[i]);
+                }
+            }
+        }
+        double bestDistance = Double.MAX_VALUE;
+        int meetingVertex = -1;
+        for (int v : new int[]{ends[0].fromVertex, ends[0].toVertex}) {
+            if (search[0].distance(v) + search[1].distance(v) < bestDistance) {
+                bestDistance = search[0].distance(v) + search[1].distance(v);
+                meetingVertex = v;
+            }
+        }
+
+        /* Grows each side until its fringe is past the stretch bound, so that every vertex on a
+         * route within the bound is settled in both trees. The forward side keeps the vertices
+         * it settles, which are where plateaus can start. */
+        int[] settled = new int[64];
+        int settledCount = 0;
+        IndexedMinHeap[] fringe = {search[0].fringe(), search[1].fringe()};
+        while (true) {
+            double bound = (1 + MAX_STRETCH) * bestDistance;
+            boolean[] grow = {
+                !fringe[0].isEmpty() && fringe[0].peekKey() <= bound,
+                !fringe[1].isEmpty() && fringe[1].peekKey() <= bound};
+            if (!grow[0] && !grow[1]) {
+                break;
+            }
+            int side = grow[0] && (!grow[1] || fringe[0].peekKey() <= fringe[1].peekKey())
+                    ? 0 : 1;
+            int other = 1 - side;
+            budget.charge();
+            int v = fringe[side].poll();
+            double distanceToV = search[side].distance(v);
+            if (side == 0) {
+                if (settledCount == settled.length) {
+                    settled = Arrays.copyOf(settled, settledCount * 2);
+                }
+                settled[settledCount] = v;
+                settledCount += 1;
+            }
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                if (search[side].settled(w)) {
+                    continue;
+                }
+                double newDistance = distanceToV + weights[e];
+                if (newDistance < search[side].distance(w)) {
+                    search[side].reach(w, newDistance, v);
+                    fringe[side].addOrDecrease(w, newDistance);
+                    if (newDistance + search[other].distance(w) < bestDistance) {
+                        bestDistance = newDistance + search[other].distance(w);
+                        meetingVertex = w;
+                    }
+                }
+            }
+        }
+        if (meetingVertex == -1) {
+            return Collections.emptyList();
+        }
+
+        /* Finds the plateaus. Edge v-w is on one if w is v's parent in the backward tree and v
+         * is w's parent in the forward tree; a plateau starts at a vertex on such an edge whose
+         * forward parent is not on one. */
+        double bound = (1 + MAX_STRETCH) * bestDistance;
+        List<double[]> plateaus = new ArrayList<>();
+        for (int i = 0; i < settledCount; i += 1) {
+            int first = settled[i];
+            if (!search[1].settled(first)
+                    || search[0].distance(first) + search[1].distance(first) > bound
+                    || !onPlateau(search, first)) {
+                continue;
+            }
+            int previous = search[0].parent(first);
+            if (previous != -1 && search[1].parent(previous) == first) {
+                continue;
+            }
+            int last = first;
+            while (onPlateau(search, last)) {
+                last = search[1].parent(last);
+            }
+            double weight = search[0].distance(first) + search[1].distance(first);
+            double length = search[0].distance(last) - search[0].distance(first);
+            if (length >= MIN_PLATEAU * weight) {
+                plateaus.add(new double[]{weight, first});
+            }
+        }
+        plateaus.sort(Comparator.comparingDouble(plateau -> plateau[0]));
+
+        /* The shortest route goes first whatever its plateau looks like, and is cached like any
+         * other shortest route. */
+        List<List<Long>> routes = new ArrayList<>();
+        Set<Long> chosenEdges = new HashSet<>();
+        routes.add(g.routeCache().put(new RouteCache.Key(ends[0], ends[1], metric),
+                viaPath(g, search, meetingVertex)));
+        sharing(search, meetingVertex, chosenEdges, true);
+        for (int i = 0; i < plateaus.size() && i < MAX_CANDIDATES && routes.size() <= k;
+             i += 1) {
+            int first = (int) plateaus.get(i)[1];
+            if (sharing(search, first, chosenEdges, false) > MAX_SHARING) {
+                continue;
+            }
+            List<Long> route = viaPath(g, search, first);
+            if (new HashSet<>(route).size() < route.size()) {
+                continue;
+            }
+            routes.add(route);
+            sharing(search, first, chosenEdges, true);
+        }
+        return routes;
+    }
+
+    /**
+     * Returns whether the edge from vertex <code>v</code> to its parent in the backward tree is
+     * also in the forward tree, leading to <code>v</code>.
+     */
+    private static boolean onPlateau(SearchContext[] search, int v) {
+        int next = search[1].parent(v);
+        return next != -1 && search[0].parent(next) == v;
+    }
+
+    /**
+     * Returns the route down the forward tree to vertex <code>via</code> and up the backward
+     * tree from it.
+     */
+    private static List<Long> viaPath(GraphDB g, SearchContext[] search, int via) {
+        LinkedList<Long> path = new LinkedList<>();
+        backtrack(g, search[0], via, path, true);
+        backtrack(g, search[1], search[1].parent(via), path, false);
+        return path;
+    }
+
+    /**
+     * Returns the fraction of the weight of the edges of the route through vertex
+     * <code>via</code> that is in <code>edges</code>, or adds them all to it with
+     * <code>add</code>. An edge weighs the difference of the tree distances of its ends, and is
+     * keyed by its two vertices in either order. A route with no edges counts as fully shared.
+     */
+    private static double sharing(SearchContext[] search, int via, Set<Long> edges,
+                                  boolean add) {
+        double shared = 0.0;
+        double total = 0.0;
+        for (int side = 0; side < 2; side += 1) {
+            for (int v = via, p = search[side].parent(v); p != -1;
+                 v = p, p = search[side].parent(v)) {
+                long key = (long) Math.min(v, p) << 32 | Math.max(v, p);
+                double weight = search[side].distance(v) - search[side].distance(p);
+                total += weight;
+                if (add) {
+                    edges.add(key);
+                } else if (edges.contains(key)) {
+                    shared += weight;
+                }
+            }
+        }
+        return total > 0 ? shared / total : 1.0;
+    }
+
+    /**
+     * Receives the vertices a bounded search settles.
+     */
+    @FunctionalInterface
+    interface ReachConsumer {
+        /**
+         * @param v        The index of the settled vertex.
+         * @param distance The weight of the route to it from the starting point.
+         */
+        void accept(int v, double distance);
+    }
+
+    /**
+     * Passes every vertex within a route of weight <code>budget</code> under <code>metric</code>
+     * from the given coordinate to <code>action</code>, nearest first, as Dijkstra's algorithm
+     * settles it. The coordinate is snapped onto the nearest way open to <code>profile</code>.
+     * Vertices are streamed rather than collected and the search state is the calling thread's
+     * pooled context, so the search allocates nothing proportional to the graph however large the
+     * budget is.
+     *
+     * @param g       <code>GraphDB</code> data source.
+     * @param lon     The longitude of the starting coordinate.
+     * @param lat     The latitude of the starting coordinate.
+     * @param budget  The largest weight of a route to search, in miles or seconds.
+     * @param metric  The quantity the budget is in.
+     * @param profile The way of travelling.
+     * @param action  Receives each vertex within the budget and the weight of its route.
+     * @return The point the coordinate snapped to.
+     */
+    static GraphDB.Snap reachable(GraphDB g, double lon, double lat, double budget,
+                                  Metric metric, Profile profile, ReachConsumer action) {
+        GraphDB.Snap start = g.snap(lon, lat, profile, false);
+        double[] weights = g.edgeWeights(profile, metric);
+        SearchContext search = SearchContext.forward(g.vertexCount());
+        IndexedMinHeap fringe = search.fringe();
+        SearchBudget searchBudget = SearchBudget.current();
+        int[] seeds = {start.fromVertex, start.toVertex};
+        double[] seedDistances = {start.fromWeight(metric), start.toWeight(metric)};
+        for (int i = 0; i < seeds.length; i += 1) {
+            if (seedDistances[i] <= budget && seedDistances[i] < search.distance(seeds[i])) {
+                search.reach(seeds[i], seedDistances[i], -1);
+                fringe.addOrDecrease(seeds[i], seedDistances[i]);
+            }
+        }
+        while (!fringe.isEmpty()) {
+            searchBudget.charge();
+            int v = fringe.poll();
+            double distanceToV = search.distance(v);
+            action.accept(v, distanceToV);
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                double newDistance = distanceToV + weights[e];
+                /* Vertices beyond the budget never enter the fringe. */
+                if (newDistance <= budget && newDistance < search.distance(w)) {
+                    search.reach(w, newDistance, v);
+                    fringe.addOrDecrease(w, newDistance);
+                }
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Returns the road distance in miles from every source coordinate to every target coordinate.
+     * Each coordinate is snapped onto the nearest road once. Then, if Contraction Hierarchies
+     * have already been built, the matrix is answered from buckets filled by one upward search
+     * per target. Otherwise, each source runs a single Dijkstra search that stops once it has
+     * settled every target it can reach. Rows are computed in parallel on the common
+     * <code>ForkJoinPool</code>.
+     *
+     * @param g          <code>GraphDB</code> data source.
+     * @param sourceLons The longitudes of the sources.
+     * @param sourceLats The latitudes of the sources, in the same order.
+     * @param targetLons The longitudes of the targets.
+     * @param targetLats The latitudes of the targets, in the same order.
+     * @return The distance from source <code>i</code> to target <code>j</code> at
+     * <code>[i][j]</code>, or infinity if the target cannot be reached from the source.
+     * @throws IllegalArgumentException If the longitude and latitude arrays differ in length.
+     */
+    public static double[][] distanceMatrix(GraphDB g,
+                                            double[] sourceLons, double[] sourceLats,
+                                            double[] targetLons, double[] targetLats) {
+        return distanceMatrix(g, sourceLons, sourceLats, targetLons, targetLats,
+                Metric.DISTANCE);
+    }
+
+    /**
+     * Returns the weight under <code>metric</code> of the shortest driving route from every
+     * source coordinate to every target coordinate, computed like the distance matrix.
+     *
+     * @param g          <code>GraphDB</code> data source.
+     * @param sourceLons The longitudes of the sources.
+     * @param sourceLats The latitudes of the sources, in the same order.
+     * @param targetLons The longitudes of the targets.
+     * @param targetLats The latitudes of the targets, in the same order.
+     * @param metric     The quantity to minimize.
+     * @return The weight of the route from source <code>i</code> to target <code>j</code> at
+     * <code>[i][j]</code>, or infinity if the target cannot be reached from the source.
+     * @throws IllegalArgumentException If the longitude and latitude arrays differ in length.
+     */
+    public static double[][] distanceMatrix(GraphDB g,
+                                            double[] sourceLons, double[] sourceLats,
+                                            double[] targetLons, double[] targetLats,
+                                            Metric metric) {
+        return distanceMatrix(g, sourceLons, sourceLats, targetLons, targetLats, metric,
+                Profile.DRIVE);
+    }
+
+    /**
+     * Returns the weight under <code>metric</code> of the shortest route for
+     * <code>profile</code> from every source coordinate to every target coordinate, computed like
+     * the distance matrix. Coordinates are snapped onto ways open to the profile.
+     *
+     * @param g          <code>GraphDB</code> data source.
+     * @param sourceLons The longitudes of the sources.
+     * @param sourceLats The latitudes of the sources, in the same order.
+     * @param targetLons The longitudes of the targets.
+     * @param targetLats The latitudes of the targets, in the same order.
+     * @param metric     The quantity to minimize.
+     * @param profile    The way of travelling.
+     * @return The weight of the route from source <code>i</code> to target <code>j</code> at
+     * <code>[i][j]</code>, or infinity if the target cannot be reached from the source.
+     * @throws IllegalArgumentException If the longitude and latitude arrays differ in length.
+     */
+    public static double[][] distanceMatrix(GraphDB g,
+                                            double[] sourceLons, double[] sourceLats,
+                                            double[] targetLons, double[] targetLats,
+                                            Metric metric, Profile profile) {
+        if (sourceLons.length != sourceLats.length || targetLons.length != targetLats.length) {
+            throw new IllegalArgumentException("Longitudes and latitudes differ in number.");
+        }
+        GraphDB.Snap[] sources = new GraphDB.Snap[sourceLons.length];
+        for (int i = 0; i < sources.length; i += 1) {
+            sources[i] = g.snap(sourceLons[i], sourceLats[i], profile, false);
+        }
+        GraphDB.Snap[] targets = new GraphDB.Snap[targetLons.length];
+        for (int j = 0; j < targets.length; j += 1) {
+            targets[j] = g.snap(targetLons[j], targetLats[j], profile, false);
+        }
+
+        double[][] matrix = new double[sources.length][targets.length];
+        ContractionHierarchy hierarchy = g.builtContractionHierarchy(profile, metric);
+        IntConsumer search;
+        if (hierarchy != null) {
+            ContractionHierarchy.Buckets buckets = hierarchy.buckets(targets);
+            search = i -> hierarchy.distances(sources[i], buckets, matrix[i]);
+        } else {
+            TargetIndex index = new TargetIndex(targets, metric);
+            search = i -> distances(g, sources[i], index, matrix[i], metric);
+        }
+        /* Rows run on pool threads, which charge the budget of the calling thread. */
+        SearchBudget budget = SearchBudget.current();
+        IntConsumer computeRow = i -> {
+            SearchBudget previous = budget.enter();
+            try {
+                search.accept(i);
+            } finally {
+                SearchBudget.exit(previous);
+            }
+        };
+        ForkJoinPool.commonPool().invoke(new RowTask(computeRow, 0, sources.length));
+
+        /* The searches only leave a segment through its ends, which misses the direct way
+         * between two points on the same segment. */
+        for (int i = 0; i < sources.length; i += 1) {
+            for (int j = 0; j < targets.length; j += 1) {
+                if (sources[i].fromVertex == targets[j].fromVertex
+                        && sources[i].toVertex == targets[j].toVertex) {
+                    matrix[i][j] = Math.min(matrix[i][j],
+                            Math.abs(sources[i].fromWeight(metric)
+                                    - targets[j].fromWeight(metric)));
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Fills <code>row</code> with the weight under <code>metric</code> of the route from
+     * <code>source</code> to every target in <code>index</code>, running Dijkstra's algorithm
+     * until it has settled both ends of every target segment in the same component as the source.
+     */
+    private static void distances(GraphDB g, GraphDB.Snap source, TargetIndex index,
+                                  double[] row, Metric metric) {
+        double[] weights = g.edgeWeights(source.profile, metric);
+        Arrays.fill(row, Double.POSITIVE_INFINITY);
+        int remaining = index.vertexCountIn(g, source.profile,
+                g.component(source.profile, source.fromVertex));
+        SearchContext search = SearchContext.forward(g.vertexCount());
+        IndexedMinHeap fringe = search.fringe();
+        SearchBudget budget = SearchBudget.current();
+        int[] seeds = {source.fromVertex, source.toVertex};
+        double[] seedDistances = {source.fromWeight(metric), source.toWeight(metric)};
+        for (int i = 0; i < seeds.length; i += 1) {
+            if (seedDistances[i] < search.distance(seeds[i])) {
+                search.reach(seeds[i], seedDistances[i], -1);
+                fringe.addOrDecrease(seeds[i], seedDistances[i]);
+            }
+        }
+        while (remaining > 0 && !fringe.isEmpty()) {
+            budget.charge();
+            int v = fringe.poll();
+            double distanceToV = search.distance(v);
+            int k = index.find(v);
+            if (k >= 0) {
+                remaining -= 1;
+                for (int i = index.first[k]; i < index.first[k + 1]; i += 1) {
+                    int t = index.targets[i];
+                    row[t] = Math.min(row[t], distanceToV + index.offsets[i]);
+                }
+            }
+            for (int e = g.firstEdge(v); e < g.edgeEnd(v); e += 1) {
+                int w = g.edgeTarget(e);
+                double newDistance = distanceToV + weights[e];
+                if (newDistance < search.distance(w)) {
+                    search.reach(w, newDistance, v);
+                    fringe.addOrDecrease(w, newDistance);
+                }
+            }
+        }
+    }
+
+    /**
+     * The ends of a set of target segments, grouped by vertex: the targets with an end at
+     * <code>vertices[k]</code> are <code>targets[first[k]]</code> up to, but not including,
+     * <code>targets[first[k + 1]]</code>, each that far away from it under the metric.
+     */
+    private static class TargetIndex {
+        private final int[] vertices;
+        private final int[] first;
+        private final int[] targets;
+        private final double[] offsets;
+
+        TargetIndex(GraphDB.Snap[] snaps, Metric metric) {
+            /* Sort the ends by vertex, packing the vertex and the end number into one long. */
+            long[] ends = new long[2 * snaps.length];
+            for (int t = 0; t < snaps.length; t += 1) {
+                ends[2 * t] = (long) snaps[t].fromVertex << 32 | 2 * t;
+                ends[2 * t + 1] = (long) snaps[t].toVertex << 32 | 2 * t + 1;
+            }
+            Arrays.sort(ends);
+            int[] distinct = new int[ends.length];
+            first = new int[ends.length + 1];
+            targets = new int[ends.length];
+            offsets = new double[ends.length];
+            int count = 0;
+            for (int i = 0; i < ends.length; i += 1) {
+                int vertex = (int) (ends[i] >>> 32);
+                int end = (int) ends[i];
+                if (count == 0 || distinct[count - 1] != vertex) {
+                    distinct[count] = vertex;
+                    first[count] = i;
+                    count += 1;
+                }
+                GraphDB.Snap snap = snaps[end / 2];
+                targets[i] = end / 2;
+                offsets[i] = end % 2 == 0 ? snap.fromWeight(metric) : snap.toWeight(metric);
+            }
+            first[count] = ends.length;
+            vertices = Arrays.copyOf(distinct, count);
+        }
+
+        /**
+         * Returns the position of vertex <code>v</code> in <code>vertices</code>, or a negative
+         * number if no target segment ends at it.
+         */
+        int find(int v) {
+            return Arrays.binarySearch(vertices, v);
+        }
 
-        public int compare(PriorityQueueObject s1, PriorityQueueObject s2) {
-            if (s1.distance > s2.distance) {
-                return 1;
-            } else if (s2.distance > s1.distance) {
-                return -1;
+        int vertexCountIn(GraphDB g, Router.Profile profile, int component) {
+            int count = 0;
+            for (int v : vertices) {
+                if (g.component(profile, v) == component) {
+                    count += 1;
+                }
             }
-            return 0;
+            return count;
         }
     }
 
-    public static class PriorityQueueObject {
+    /**
+     * Computes the rows [lo, hi) of a matrix, splitting the range in half until each task has a
+     * single row.
+     */
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        Long nodeID;
-        double distance;
+        private final IntConsumer computeRow;
+        private final int lo;
+        private final int hi;
 
-        PriorityQueueObject(Long nodeID, double distance) {
-            this.nodeID = nodeID;
-            this.distance = distance;
+        RowTask(IntConsumer computeRow, int lo, int hi) {
+            this.computeRow = computeRow;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                for (int i = lo; i < hi; i += 1) {
+                    computeRow.accept(i);
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RowTask(computeRow, lo, mid), new RowTask(computeRow, mid, hi));
         }
     }
 
+    /**
+     * Returns the forward potential of vertex <code>v</code> for bidirectional A*: half the
+     * difference between its great-circle distances to the destination and to the start, in
+     * units of <code>metric</code>, or 0 when the heuristic is disabled.
+     */
+    private static double potential(GraphDB g, int v, GraphDB.Snap start,
+                                    GraphDB.Snap destination, boolean useHeuristic,
+                                    Metric metric) {
+        if (!useHeuristic) {
+            return 0.0;
+        }
+        double toDestination = GraphDB.greatCircle(g.vertexLon(v), g.vertexLat(v),
+                destination.lon, destination.lat);
+        double toStart = GraphDB.greatCircle(g.vertexLon(v), g.vertexLat(v),
+                start.lon, start.lat);
+        return (toDestination - toStart) / 2 * g.weightPerMile(start.profile, metric);
+    }
+
+    /**
+     * Returns the A* estimate of the remaining weight from vertex <code>v</code> to the
+     * destination: the great-circle distance to the snapped destination point, which no road
+     * route can beat, converted to <code>metric</code> at the profile's fastest speed. Returns
+     * 0 when the heuristic is disabled, which turns A* into Dijkstra. Given
+     * <code>landmarks</code>, returns the larger of that and the landmark lower bound; both are
+     * consistent, so their maximum is too.
+     */
+    private static double heuristic(GraphDB g, int v, GraphDB.Snap destination,
+                                    boolean useHeuristic, Landmarks landmarks, Metric metric) {
+        if (!useHeuristic) {
+            return 0.0;
+        }
+        double estimate = GraphDB.greatCircle(g.vertexLon(v), g.vertexLat(v),
+                destination.lon, destination.lat) * g.weightPerMile(destination.profile, metric);
+        if (landmarks != null) {
+            estimate = Math.max(estimate, landmarks.lowerBound(v, destination, metric));
+        }
+        return estimate;
+    }
 
     /**
      * Given a <code>route</code> of vertex IDs, return a <code>List</code> of
      * <code>NavigationDirection</code> objects representing the travel directions in order.
+     * A new direction starts wherever the route moves onto a way with a different name; its turn
+     * is the change between the precomputed bearings of the edges either side. The route is
+     * walked once, comparing names by their interned index, and the only strings involved are the
+     * way names themselves.
      *
      * @param g     <code>GraphDB</code> data source.
      * @param route The shortest-path route of vertex IDs.
      * @return A new <code>List</code> of <code>NavigationDirection</code> objects.
+     * @throws IllegalArgumentException If two consecutive vertices of the route are not joined by
+     *                                  a road.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-        // TODO
-        return Collections.emptyList();
+        List<NavigationDirection> directions = new ArrayList<>();
+        Iterator<Long> vertices = route.iterator();
+        if (!vertices.hasNext()) {
+            return directions;
+        }
+        int v = g.vertexIndex(vertices.next());
+        NavigationDirection current = null;
+        int currentName = -1;
+        double previousBearing = 0.0;
+        while (vertices.hasNext()) {
+            int w = g.vertexIndex(vertices.next());
+            int e = v >= 0 && w >= 0 ? g.edgeBetween(v, w, currentName) : -1;
+            if (e == -1) {
+                throw new IllegalArgumentException("The route leaves the roads of the graph.");
+            }
+            int name = g.edgeName(e);
+            if (current == null || name != currentName) {
+                NavigationDirection next = new NavigationDirection();
+                next.direction = current == null ? NavigationDirection.START
+                        : NavigationDirection.turn(previousBearing, g.edgeBearing(e));
+                next.way = name == -1 ? NavigationDirection.UNKNOWN_ROAD : g.wayName(name);
+                directions.add(next);
+                current = next;
+                currentName = name;
+            }
+            current.distance += g.edgeLength(e);
+            previousBearing = g.edgeBearing(e);
+            v = w;
+        }
+        return directions;
     }
 
     /**
@@ -151,6 +1097,11 @@ public class Router {
          */
         public static final int NUM_DIRECTIONS = 8;
 
+        /**
+         * The way name used for ways without one.
+         */
+        public static final String UNKNOWN_ROAD = "unknown road";
+
         /**
          * A mapping of integer values to directions.
          */
@@ -185,6 +1136,30 @@ public class Router {
                     DIRECTIONS[direction], way, distance);
         }
 
+        /**
+         * Returns the direction of a turn from a road heading at <code>fromBearing</code> onto
+         * one heading at <code>toBearing</code>, both in degrees clockwise from north. Turns of
+         * up to 15 degrees go straight, up to 30 are slight, up to 100 are turns, and the rest
+         * are sharp.
+         */
+        static int turn(double fromBearing, double toBearing) {
+            double relative = toBearing - fromBearing;
+            if (relative > 180) {
+                relative -= 360;
+            } else if (relative <= -180) {
+                relative += 360;
+            }
+            double angle = Math.abs(relative);
+            if (angle <= 15) {
+                return STRAIGHT;
+            } else if (angle <= 30) {
+                return relative < 0 ? SLIGHT_LEFT : SLIGHT_RIGHT;
+            } else if (angle <= 100) {
+                return relative < 0 ? LEFT : RIGHT;
+            }
+            return relative < 0 ? SHARP_LEFT : SHARP_RIGHT;
+        }
+
         /**
          * Returns a new <code>NavigationDirection</code> from a string representation.
          *
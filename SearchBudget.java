@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on how much work the searches of one request may do: the most vertices they may settle
+ * between them, a wall-clock deadline, and a flag that another thread can set to cancel them.
+ * A search that runs over any limit stops by throwing <code>Exceeded</code>, so a pathological
+ * query gives its thread back instead of exploring the whole graph.
+ * <p>
+ * The budget of a request is installed for the thread serving it with <code>enter</code> and
+ * removed with <code>exit</code> in a <code>finally</code> block. Every query search charges the
+ * current thread's budget once before each vertex it takes off its fringe. Charging before the
+ * vertex is removed leaves the search state consistent when the budget runs out, which matters for
+ * searches that are kept and resumed. The settled count is checked on every charge; the clock and
+ * the cancellation flag only every <code>CHECK_INTERVAL</code> charges, since reading the clock
+ * costs more than settling a vertex. Threads without a budget of their own, such as those building
+ * the graph or its preprocessed tables, are unlimited.
+ */
+class SearchBudget {
+    /** A budget that never runs out. */
+    static final SearchBudget UNLIMITED = new SearchBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    /** The number of charges between checks of the clock and the cancellation flag. */
+    private static final int CHECK_INTERVAL = 256;
+    private static final ThreadLocal<SearchBudget> CURRENT =
+            ThreadLocal.withInitial(() -> UNLIMITED);
+
+    private final long maxSettled;
+    private final long deadline;
+    private final AtomicLong settled = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a budget.
+     *
+     * @param maxSettled The most vertices the searches may settle between them.
+     * @param timeLimit  The wall-clock time the searches may take from now, in milliseconds.
+     */
+    static SearchBudget of(long maxSettled, long timeLimit) {
+        return new SearchBudget(maxSettled, System.nanoTime() + timeLimit * 1_000_000L);
+    }
+
+    private SearchBudget(long maxSettled, long deadline) {
+        this.maxSettled = maxSettled;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the budget installed for the current thread, or <code>UNLIMITED</code>.
+     */
+    static SearchBudget current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Installs this budget for the current thread.
+     *
+     * @return The budget installed before, to be passed to <code>exit</code> when the searches
+     * this budget covers are done.
+     */
+    SearchBudget enter() {
+        SearchBudget previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * Puts back the budget that was installed for the current thread before <code>enter</code>.
+     *
+     * @param previous The budget <code>enter</code> returned.
+     */
+    static void exit(SearchBudget previous) {
+        CURRENT.set(previous);
+    }
+
+    /**
+     * Asks the searches charging this budget to stop at their next check. Safe to call from any
+     * thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Counts one vertex about to be settled.
+     *
+     * @throws Exceeded If that is more than the budget allows, the deadline has passed or the
+     *                  budget was cancelled.
+     */
+    void charge() {
+        if (this == UNLIMITED) {
+            return;
+        }
+        long count = settled.incrementAndGet();
+        if (count > maxSettled) {
+            throw new Exceeded("The search settled more than " + maxSettled + " vertices.");
+        }
+        if (count % CHECK_INTERVAL == 0) {
+            if (cancelled) {
+                throw new Exceeded("The search was cancelled.");
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new Exceeded("The search ran past its time limit.");
+            }
+        }
+    }
+
+    /**
+     * Thrown by a search that ran over its budget.
+     */
+    static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Exceeded(String reason) {
+            super(reason);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+
+/**
+ * Reusable workspace for one direction of a graph search: the tentative distance and parent of
+ * every vertex, and the fringe. Each thread keeps a forward and a backward context and reuses
+ * them for every search it runs, so a query allocates nothing proportional to the graph.
+ * <p>
+ * Instead of clearing the arrays between searches, <code>reset</code> bumps a generation counter;
+ * a vertex whose stamp is not the current generation has not been reached by the current search.
+ * Resetting therefore takes time proportional to what the previous search left in its fringe,
+ * not to the size of the graph.
+ */
+class SearchContext {
+    private static final ThreadLocal<SearchContext[]> CONTEXTS =
+            ThreadLocal.withInitial(() -> new SearchContext[]{new SearchContext(),
+                new SearchContext()});
+
+    private double[] distances = new double[0];
+    private int[] parents = new int[0];
+    private int[] stamps = new int[0];
+    private int generation = 0;
+    private IndexedMinHeap fringe = new IndexedMinHeap(0);
+
+    /**
+     * Returns this thread's forward search context, reset for a graph of
+     * <code>vertexCount</code> vertices.
+     */
+    static SearchContext forward(int vertexCount) {
+        return CONTEXTS.get()[0].reset(vertexCount);
+    }
+
+    /**
+     * Returns this thread's backward search context, reset for a graph of
+     * <code>vertexCount</code> vertices. It is separate from the forward context so that a
+     * bidirectional search can use both at once.
+     */
+    static SearchContext backward(int vertexCount) {
+        return CONTEXTS.get()[1].reset(vertexCount);
+    }
+
+    /**
+     * Returns a new context for a graph of <code>vertexCount</code> vertices that belongs to no
+     * thread, for a search that is kept and resumed across requests.
+     */
+    static SearchContext detached(int vertexCount) {
+        return new SearchContext().reset(vertexCount);
+    }
+
+    /**
+     * Forgets every vertex reached by the previous search.
+     */
+    private SearchContext reset(int vertexCount) {
+        if (stamps.length != vertexCount) {
+            distances = new double[vertexCount];
+            parents = new int[vertexCount];
+            stamps = new int[vertexCount];
+            fringe = new IndexedMinHeap(vertexCount);
+            generation = 0;
+        }
+        fringe.clear();
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        return this;
+    }
+
+    /**
+     * Returns the fringe of the search, keyed by priority.
+     */
+    IndexedMinHeap fringe() {
+        return fringe;
+    }
+
+    /**
+     * Returns whether the current search has reached vertex <code>v</code>.
+     */
+    boolean reached(int v) {
+        return stamps[v] == generation;
+    }
+
+    /**
+     * Returns whether the current search has settled vertex <code>v</code>, that is, reached it
+     * and taken it off the fringe.
+     */
+    boolean settled(int v) {
+        return stamps[v] == generation && !fringe.contains(v);
+    }
+
+    /**
+     * Returns the tentative distance to vertex <code>v</code>, or infinity if the current search
+     * has not reached it.
+     */
+    double distance(int v) {
+        return stamps[v] == generation ? distances[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns what the current search reached vertex <code>v</code> through, as recorded by
+     * <code>reach</code>, or -1 if it has not reached <code>v</code>.
+     */
+    int parent(int v) {
+        return stamps[v] == generation ? parents[v] : -1;
+    }
+
+    /**
+     * Records a new tentative distance to vertex <code>v</code>.
+     *
+     * @param v        The index of a vertex in the graph.
+     * @param distance The distance to <code>v</code>.
+     * @param parent   The vertex or edge <code>v</code> was reached through, or -1 for a vertex
+     *                 the search starts from.
+     */
+    void reach(int v, double distance, int parent) {
+        stamps[v] = generation;
+        distances[v] = distance;
+        parents[v] = parent;
+    }
+}
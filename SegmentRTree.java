@@ -0,0 +1,471 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable R-tree over the road segments of a <code>GraphDB</code>, bulk-loaded with the
+ * Sort-Tile-Recursive (STR) algorithm so that every node except the last one on each level is
+ * full. Used to snap a coordinate to the nearest point on a road rather than to the nearest vertex.
+ * <p>
+ * Segments are stored in STR order as the vertex indices of their endpoints only; their
+ * coordinates are looked up in the projected coordinates of the vertices, which the graph keeps
+ * once and shares with its k-d tree. Nodes are stored level by level, leaves first and the root
+ * last; each node records its bounding box, packed four doubles to a node, and the contiguous
+ * range of children below it, which are segments for a leaf node and nodes of the level below
+ * otherwise.
+ */
+class SegmentRTree {
+    /**
+     * The maximum number of children of a node.
+     */
+    private static final int NODE_CAPACITY = 16;
+
+    private final int[] from;
+    private final int[] to;
+    /**
+     * The projected coordinates of each vertex, indexed by vertex.
+     */
+    private final double[] xs;
+    private final double[] ys;
+
+    /**
+     * The bounding box of node <code>i</code> as its minimum x, minimum y, maximum x and maximum
+     * y at <code>4 * i</code> to <code>4 * i + 3</code>.
+     */
+    private final double[] boxes;
+    private final int[] firstChild;
+    private final int[] childEnd;
+    /**
+     * Nodes below this index are leaves, whose children are segments.
+     */
+    private final int leafCount;
+    private final int height;
+
+    /**
+     * Bulk-loads a tree over the segments between vertices <code>from[i]</code> and
+     * <code>to[i]</code>.
+     *
+     * @param from The vertex index of the first endpoint of each segment.
+     * @param to   The vertex index of the second endpoint of each segment.
+     * @param xs   The projected x-coordinate of each vertex, which the tree keeps and must not be
+     *             changed afterwards.
+     * @param ys   The projected y-coordinate of each vertex, likewise.
+     */
+    SegmentRTree(int[] from, int[] to, double[] xs, double[] ys) {
+        int n = from.length;
+        double[] centerX = new double[n];
+        double[] centerY = new double[n];
+        for (int i = 0; i < n; i += 1) {
+            centerX[i] = (xs[from[i]] + xs[to[i]]) / 2;
+            centerY[i] = (ys[from[i]] + ys[to[i]]) / 2;
+        }
+        int[] order = strOrder(centerX, centerY);
+        this.from = new int[n];
+        this.to = new int[n];
+        this.xs = xs;
+        this.ys = ys;
+        for (int i = 0; i < n; i += 1) {
+            this.from[i] = from[order[i]];
+            this.to[i] = to[order[i]];
+        }
+
+        /* Group the segments into leaves, then repeatedly STR-order the nodes of the newest level
+         * and group them into parents until a single root remains. */
+        int nodeCapacity = n + 1;
+        double[] nMinX = new double[nodeCapacity];
+        double[] nMinY = new double[nodeCapacity];
+        double[] nMaxX = new double[nodeCapacity];
+        double[] nMaxY = new double[nodeCapacity];
+        int[] nFirst = new int[nodeCapacity];
+        int[] nEnd = new int[nodeCapacity];
+        int count = 0;
+        for (int start = 0; start < n || count == 0; start += NODE_CAPACITY) {
+            int end = Math.min(n, start + NODE_CAPACITY);
+            nFirst[count] = start;
+            nEnd[count] = end;
+            nMinX[count] = Double.POSITIVE_INFINITY;
+            nMinY[count] = Double.POSITIVE_INFINITY;
+            nMaxX[count] = Double.NEGATIVE_INFINITY;
+            nMaxY[count] = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i += 1) {
+                int v = this.from[i];
+                int w = this.to[i];
+                nMinX[count] = Math.min(nMinX[count], Math.min(xs[v], xs[w]));
+                nMinY[count] = Math.min(nMinY[count], Math.min(ys[v], ys[w]));
+                nMaxX[count] = Math.max(nMaxX[count], Math.max(xs[v], xs[w]));
+                nMaxY[count] = Math.max(nMaxY[count], Math.max(ys[v], ys[w]));
+            }
+            count += 1;
+        }
+        leafCount = count;
+        int levelStart = 0;
+        int levels = 1;
+        while (count - levelStart > 1) {
+            int levelSize = count - levelStart;
+            double[] cx = new double[levelSize];
+            double[] cy = new double[levelSize];
+            for (int i = 0; i < levelSize; i += 1) {
+                cx[i] = (nMinX[levelStart + i] + nMaxX[levelStart + i]) / 2;
+                cy[i] = (nMinY[levelStart + i] + nMaxY[levelStart + i]) / 2;
+            }
+            int[] levelOrder = strOrder(cx, cy);
+            permute(nMinX, levelStart, levelOrder);
+            permute(nMinY, levelStart, levelOrder);
+            permute(nMaxX, levelStart, levelOrder);
+            permute(nMaxY, levelStart, levelOrder);
+            permute(nFirst, levelStart, levelOrder);
+            permute(nEnd, levelStart, levelOrder);
+            int levelEnd = count;
+            for (int start = levelStart; start < levelEnd; start += NODE_CAPACITY) {
+                int end = Math.min(levelEnd, start + NODE_CAPACITY);
+                nFirst[count] = start;
+                nEnd[count] = end;
+                nMinX[count] = Double.POSITIVE_INFINITY;
+                nMinY[count] = Double.POSITIVE_INFINITY;
+                nMaxX[count] = Double.NEGATIVE_INFINITY;
+                nMaxY[count] = Double.NEGATIVE_INFINITY;
+                for (int i = start; i < end; i += 1) {
+                    nMinX[count] = Math.min(nMinX[count], nMinX[i]);
+                    nMinY[count] = Math.min(nMinY[count], nMinY[i]);
+                    nMaxX[count] = Math.max(nMaxX[count], nMaxX[i]);
+                    nMaxY[count] = Math.max(nMaxY[count], nMaxY[i]);
+                }
+                count += 1;
+            }
+            levelStart = levelEnd;
+            levels += 1;
+        }
+        boxes = new double[4 * count];
+        for (int node = 0; node < count; node += 1) {
+            boxes[4 * node] = nMinX[node];
+            boxes[4 * node + 1] = nMinY[node];
+            boxes[4 * node + 2] = nMaxX[node];
+            boxes[4 * node + 3] = nMaxY[node];
+        }
+        firstChild = Arrays.copyOf(nFirst, count);
+        childEnd = Arrays.copyOf(nEnd, count);
+        height = levels;
+    }
+
+    private SegmentRTree(int[] from, int[] to, double[] xs, double[] ys, double[] boxes,
+                         int[] firstChild, int[] childEnd, int leafCount) {
+        this.from = from;
+        this.to = to;
+        this.xs = xs;
+        this.ys = ys;
+        this.boxes = boxes;
+        this.firstChild = firstChild;
+        this.childEnd = childEnd;
+        this.leafCount = leafCount;
+        int levels = 1;
+        for (int node = firstChild.length - 1; node >= leafCount; node = firstChild[node]) {
+            levels += 1;
+        }
+        this.height = levels;
+    }
+
+    /**
+     * Returns the Sort-Tile-Recursive order of the points: sorted by x, cut into
+     * <code>sqrt(n / NODE_CAPACITY)</code> vertical slices, and each slice sorted by y.
+     */
+    private static int[] strOrder(double[] cx, double[] cy) {
+        int n = cx.length;
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i += 1) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, (a, b) -> Double.compare(cx[a], cx[b]));
+        int leaves = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int slices = (int) Math.ceil(Math.sqrt(leaves));
+        int sliceSize = slices * NODE_CAPACITY;
+        for (int start = 0; start < n; start += sliceSize) {
+            Arrays.sort(boxed, start, Math.min(n, start + sliceSize),
+                    (a, b) -> Double.compare(cy[a], cy[b]));
+        }
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = boxed[i];
+        }
+        return order;
+    }
+
+    private static void permute(double[] values, int offset, int[] order) {
+        double[] copy = Arrays.copyOfRange(values, offset, offset + order.length);
+        for (int i = 0; i < order.length; i += 1) {
+            values[offset + i] = copy[order[i]];
+        }
+    }
+
+    private static void permute(int[] values, int offset, int[] order) {
+        int[] copy = Arrays.copyOfRange(values, offset, offset + order.length);
+        for (int i = 0; i < order.length; i += 1) {
+            values[offset + i] = copy[order[i]];
+        }
+    }
+
+    /**
+     * Returns the number of segments in the tree.
+     */
+    int size() {
+        return from.length;
+    }
+
+    /**
+     * Returns the vertex index of the first endpoint of segment <code>s</code>.
+     */
+    int from(int s) {
+        return from[s];
+    }
+
+    /**
+     * Returns the vertex index of the second endpoint of segment <code>s</code>.
+     */
+    int to(int s) {
+        return to[s];
+    }
+
+    /**
+     * Returns the position along segment <code>s</code>, from 0 at its first endpoint to 1 at
+     * its second, of the point on it closest to the projected point (<code>x</code>,
+     * <code>y</code>).
+     */
+    double fraction(int s, double x, double y) {
+        double x0 = xs[from[s]];
+        double y0 = ys[from[s]];
+        double dx = xs[to[s]] - x0;
+        double dy = ys[to[s]] - y0;
+        double length = dx * dx + dy * dy;
+        if (length == 0) {
+            return 0.0;
+        }
+        double t = ((x - x0) * dx + (y - y0) * dy) / length;
+        return Math.max(0.0, Math.min(1.0, t));
+    }
+
+    private double distanceSquared(int s, double x, double y) {
+        double t = fraction(s, x, y);
+        double x0 = xs[from[s]];
+        double y0 = ys[from[s]];
+        double dx = x0 + t * (xs[to[s]] - x0) - x;
+        double dy = y0 + t * (ys[to[s]] - y0) - y;
+        return dx * dx + dy * dy;
+    }
+
+    private double boxDistanceSquared(int node, double x, double y) {
+        double dx = Math.max(0.0, Math.max(boxes[4 * node] - x, x - boxes[4 * node + 2]));
+        double dy = Math.max(0.0, Math.max(boxes[4 * node + 1] - y, y - boxes[4 * node + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Returns the segment closest to the projected point (<code>x</code>, <code>y</code>).
+     * <p>
+     * The search is a depth-first branch and bound: children are visited nearest box first, and
+     * a node is skipped once its box is no closer than the best segment found so far. The stack is
+     * reused per thread, so the query allocates nothing.
+     *
+     * @param x The projected x-coordinate of the query point.
+     * @param y The projected y-coordinate of the query point.
+     * @return The closest segment, or -1 if the tree has no segments.
+     */
+    int nearest(double x, double y) {
+        return nearest(x, y, null);
+    }
+
+    /**
+     * Returns the segment closest to the projected point (<code>x</code>, <code>y</code>) among
+     * the segments <code>accept</code> allows.
+     *
+     * @param x      The projected x-coordinate of the query point.
+     * @param y      The projected y-coordinate of the query point.
+     * @param accept Tests whether a segment may be returned, or <code>null</code> to allow any.
+     * @return The closest allowed segment, or -1 if there is none.
+     */
+    int nearest(double x, double y, IntPredicate accept) {
+        if (from.length == 0) {
+            return -1;
+        }
+        Stack stack = Stack.acquire(height * NODE_CAPACITY + 1);
+        try {
+            int root = firstChild.length - 1;
+            stack.push(root, boxDistanceSquared(root, x, y));
+            double bestDistance = Double.POSITIVE_INFINITY;
+            int best = -1;
+            while (stack.size > 0) {
+                stack.size -= 1;
+                if (stack.distances[stack.size] >= bestDistance) {
+                    continue;
+                }
+                int node = stack.nodes[stack.size];
+                if (node < leafCount) {
+                    for (int s = firstChild[node]; s < childEnd[node]; s += 1) {
+                        double d = distanceSquared(s, x, y);
+                        if (d < bestDistance && (accept == null || accept.test(s))) {
+                            bestDistance = d;
+                            best = s;
+                        }
+                    }
+                    continue;
+                }
+                /* Push the children farthest first so the nearest is popped next. */
+                int base = stack.size;
+                for (int child = firstChild[node]; child < childEnd[node]; child += 1) {
+                    double d = boxDistanceSquared(child, x, y);
+                    if (d >= bestDistance) {
+                        continue;
+                    }
+                    int i = stack.size;
+                    stack.size += 1;
+                    while (i > base && stack.distances[i - 1] < d) {
+                        stack.nodes[i] = stack.nodes[i - 1];
+                        stack.distances[i] = stack.distances[i - 1];
+                        i -= 1;
+                    }
+                    stack.nodes[i] = child;
+                    stack.distances[i] = d;
+                }
+            }
+            return best;
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Passes every segment whose bounding box intersects the projected rectangle
+     * [<code>minX</code>, <code>maxX</code>] by [<code>minY</code>, <code>maxY</code>] to
+     * <code>action</code>, in no particular order.
+     *
+     * @param action Receives the index of each segment.
+     */
+    void withinBox(double boxMinX, double boxMinY, double boxMaxX, double boxMaxY,
+                   IntConsumer action) {
+        if (from.length == 0) {
+            return;
+        }
+        Stack stack = Stack.acquire(height * NODE_CAPACITY + 1);
+        try {
+            stack.push(firstChild.length - 1, 0.0);
+            while (stack.size > 0) {
+                stack.size -= 1;
+                int node = stack.nodes[stack.size];
+                if (boxes[4 * node] > boxMaxX || boxes[4 * node + 2] < boxMinX
+                        || boxes[4 * node + 1] > boxMaxY || boxes[4 * node + 3] < boxMinY) {
+                    continue;
+                }
+                if (node >= leafCount) {
+                    for (int child = firstChild[node]; child < childEnd[node]; child += 1) {
+                        stack.push(child, 0.0);
+                    }
+                    continue;
+                }
+                for (int s = firstChild[node]; s < childEnd[node]; s += 1) {
+                    int v = from[s];
+                    int w = to[s];
+                    if (Math.min(xs[v], xs[w]) <= boxMaxX && Math.max(xs[v], xs[w]) >= boxMinX
+                            && Math.min(ys[v], ys[w]) <= boxMaxY
+                            && Math.max(ys[v], ys[w]) >= boxMinY) {
+                        action.accept(s);
+                    }
+                }
+            }
+        } finally {
+            stack.release();
+        }
+    }
+
+    /**
+     * Per-thread stack of nodes still to visit, each with the squared distance from the query
+     * point to its bounding box. A visit pushes at most <code>NODE_CAPACITY</code> children and
+     * pops one node, so a tree of height h never needs more than h * NODE_CAPACITY + 1 entries.
+     * <p>
+     * Queries made from a callback of another query on the same thread take the next stack in
+     * the thread's chain, as in <code>KDTree</code>.
+     */
+    private static final class Stack {
+        private static final ThreadLocal<Stack> STACKS = ThreadLocal.withInitial(Stack::new);
+
+        private int[] nodes = new int[0];
+        private double[] distances = new double[0];
+        private int size;
+        private boolean inUse;
+        /** The stack for a query nested inside the one using this stack. */
+        private Stack next;
+
+        /**
+         * Returns the first stack of the current thread's chain that no query is using, with
+         * room for <code>capacity</code> entries. It must be given back with
+         * <code>release</code>.
+         */
+        static Stack acquire(int capacity) {
+            Stack stack = STACKS.get();
+            while (stack.inUse) {
+                if (stack.next == null) {
+                    stack.next = new Stack();
+                }
+                stack = stack.next;
+            }
+            if (stack.nodes.length < capacity) {
+                stack.nodes = new int[capacity];
+                stack.distances = new double[capacity];
+            }
+            stack.size = 0;
+            stack.inUse = true;
+            return stack;
+        }
+
+        void release() {
+            inUse = false;
+        }
+
+        void push(int node, double distance) {
+            nodes[size] = node;
+            distances[size] = distance;
+            size += 1;
+        }
+    }
+
+    void write(GraphSnapshot.Writer writer) throws IOException {
+        writer.writeInts(from);
+        writer.writeInts(to);
+        writer.writeDoubles(boxes);
+        writer.writeInts(firstChild);
+        writer.writeInts(childEnd);
+        writer.writeInts(new int[] {leafCount});
+    }
+
+    /**
+     * Reads a tree written by <code>write</code> over segments between the vertices whose
+     * projected coordinates are <code>xs</code> and <code>ys</code>.
+     */
+    static SegmentRTree read(GraphSnapshot.Reader reader, double[] xs, double[] ys)
+            throws IOException {
+        int[] from = reader.readInts();
+        int[] to = reader.readInts();
+        double[] boxes = reader.readDoubles();
+        int[] firstChild = reader.readInts();
+        int[] childEnd = reader.readInts();
+        int[] leafCount = reader.readInts();
+        if (leafCount.length != 1 || firstChild.length == 0
+                || leafCount[0] > firstChild.length || to.length != from.length
+                || boxes.length != 4 * firstChild.length
+                || childEnd.length != firstChild.length) {
+            throw new IOException("Corrupt snapshot: malformed segment R-tree.");
+        }
+        for (int s = 0; s < from.length; s += 1) {
+            if (from[s] < 0 || from[s] >= xs.length || to[s] < 0 || to[s] >= xs.length) {
+                throw new IOException("Corrupt snapshot: segment R-tree vertex out of range.");
+            }
+        }
+        return new SegmentRTree(from, to, xs, ys, boxes, firstChild, childEnd, leafCount[0]);
+    }
+
+    /**
+     * Returns the bytes taken by the tree, not counting the coordinate arrays it shares.
+     */
+    long bytes() {
+        return (long) Integer.BYTES * (from.length + to.length + firstChild.length
+                + childEnd.length) + (long) Double.BYTES * boxes.length;
+    }
+}
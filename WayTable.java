@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes of the OSM ways in the graph, stored column by column rather than as an object
+ * per way. Row <code>i</code> of every column describes the same way, and each edge of the graph
+ * records the row of the way it is part of.
+ * <p>
+ * Strings are interned into dictionaries: the name column holds an index into a table of
+ * distinct names, and the highway column a byte index into a table of distinct highway values,
+ * so a metro-sized extract stores each street name once however many ways share it. The posted
+ * speed is kept in tenths of a mile per hour in a short. Rows are appended while the XML is
+ * parsed; <code>trim</code> then drops the spare capacity and the lookup maps that interning
+ * needs, leaving only primitive arrays and the dictionaries.
+ */
+class WayTable {
+    /** Value of the name and highway columns for a way without the tag. */
+    static final int NONE = -1;
+    /** The most distinct highway values the byte column can index; 0xFF stands for none. */
+    private static final int MAX_HIGHWAY_CLASSES = 255;
+
+    private long[] wayIds;
+    private int[] names;
+    private byte[] highwayClasses;
+    private short[] maxspeeds;
+    private int size;
+    private final Dictionary nameDictionary;
+    private final Dictionary highwayDictionary;
+
+    /**
+     * Creates an empty table to append rows to.
+     */
+    WayTable() {
+        this(new long[256], new int[256], new byte[256], new short[256], 0, new Dictionary(),
+                new Dictionary());
+    }
+
+    private WayTable(long[] wayIds, int[] names, byte[] highwayClasses, short[] maxspeeds,
+                     int size, Dictionary nameDictionary, Dictionary highwayDictionary) {
+        this.wayIds = wayIds;
+        this.names = names;
+        this.highwayClasses = highwayClasses;
+        this.maxspeeds = maxspeeds;
+        this.size = size;
+        this.nameDictionary = nameDictionary;
+        this.highwayDictionary = highwayDictionary;
+    }
+
+    /**
+     * Appends a way.
+     *
+     * @param wayId    The OSM ID of the way.
+     * @param name     The name of the way, or <code>null</code> if it has none.
+     * @param highway  The highway value of the way, or <code>null</code> if it has none.
+     * @param maxspeed The posted speed in miles per hour, or NaN if none is posted.
+     * @return The row of the way.
+     * @throws IllegalStateException If the way has a highway value beyond the
+     *                               <code>MAX_HIGHWAY_CLASSES</code> distinct ones the table can
+     *                               hold, or the table has been trimmed or read from a snapshot.
+     */
+    int add(long wayId, String name, String highway, double maxspeed) {
+        if (nameDictionary.index == null) {
+            throw new IllegalStateException("Cannot add ways to a trimmed way table.");
+        }
+        if (size == wayIds.length) {
+            int capacity = size * 2;
+            wayIds = Arrays.copyOf(wayIds, capacity);
+            names = Arrays.copyOf(names, capacity);
+            highwayClasses = Arrays.copyOf(highwayClasses, capacity);
+            maxspeeds = Arrays.copyOf(maxspeeds, capacity);
+        }
+        int highwayClass = highwayDictionary.intern(highway);
+        if (highwayClass >= MAX_HIGHWAY_CLASSES) {
+            throw new IllegalStateException("More than " + MAX_HIGHWAY_CLASSES
+                    + " distinct highway values.");
+        }
+        wayIds[size] = wayId;
+        names[size] = nameDictionary.intern(name);
+        highwayClasses[size] = (byte) highwayClass;
+        maxspeeds[size] = Double.isNaN(maxspeed) ? 0
+                : (short) Math.min(Math.round(maxspeed * 10), Short.MAX_VALUE);
+        size += 1;
+        return size - 1;
+    }
+
+    /**
+     * Drops the spare capacity of the columns and the interning maps. No rows can be added
+     * afterwards.
+     */
+    void trim() {
+        wayIds = Arrays.copyOf(wayIds, size);
+        names = Arrays.copyOf(names, size);
+        highwayClasses = Arrays.copyOf(highwayClasses, size);
+        maxspeeds = Arrays.copyOf(maxspeeds, size);
+        nameDictionary.trim();
+        highwayDictionary.trim();
+    }
+
+    /**
+     * Returns the number of ways.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the OSM ID of the way in row <code>way</code>.
+     */
+    long wayId(int way) {
+        return wayIds[way];
+    }
+
+    /**
+     * Returns the index of the name of the way in row <code>way</code>, or <code>NONE</code>.
+     * Ways with the same name have the same index.
+     */
+    int name(int way) {
+        return names[way];
+    }
+
+    /**
+     * Returns the name with the given index.
+     *
+     * @param name A name index other than <code>NONE</code>.
+     */
+    String nameString(int name) {
+        return nameDictionary.get(name);
+    }
+
+    /**
+     * Returns the highway value of the way in row <code>way</code>, or <code>null</code> if it
+     * has none.
+     */
+    String highway(int way) {
+        int highwayClass = highwayClasses[way] & 0xFF;
+        return highwayClass == (NONE & 0xFF) ? null : highwayDictionary.get(highwayClass);
+    }
+
+    /**
+     * Returns the posted speed of the way in row <code>way</code> in miles per hour, to a tenth,
+     * or NaN if none is posted.
+     */
+    double maxspeed(int way) {
+        return maxspeeds[way] == 0 ? Double.NaN : maxspeeds[way] / 10.0;
+    }
+
+    /**
+     * Returns the bytes taken by each column and dictionary, for sizing the table. A dictionary
+     * is counted as its strings' characters plus a per-string overhead.
+     *
+     * @return The bytes per column, in a fixed order, with their total last.
+     */
+    Map<String, Long> footprint() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        bytes.put("wayIds", (long) Long.BYTES * wayIds.length);
+        bytes.put("names", (long) Integer.BYTES * names.length);
+        bytes.put("highwayClasses", (long) highwayClasses.length);
+        bytes.put("maxspeeds", (long) Short.BYTES * maxspeeds.length);
+        bytes.put("nameDictionary", nameDictionary.bytes());
+        bytes.put("highwayDictionary", highwayDictionary.bytes());
+        long total = 0;
+        for (long columnBytes : bytes.values()) {
+            total += columnBytes;
+        }
+        bytes.put("total", total);
+        return bytes;
+    }
+
+    void write(GraphSnapshot.Writer writer) throws IOException {
+        writer.writeLongs(Arrays.copyOf(wayIds, size));
+        writer.writeInts(Arrays.copyOf(names, size));
+        writer.writeBytes(Arrays.copyOf(highwayClasses, size));
+        writer.writeShorts(Arrays.copyOf(maxspeeds, size));
+        writer.writeStrings(nameDictionary.values());
+        writer.writeStrings(highwayDictionary.values());
+    }
+
+    static WayTable read(GraphSnapshot.Reader reader) throws IOException {
+        long[] wayIds = reader.readLongs();
+        int[] names = reader.readInts();
+        byte[] highwayClasses = reader.readBytes();
+        short[] maxspeeds = reader.readShorts();
+        String[] nameValues = reader.readStrings();
+        String[] highwayValues = reader.readStrings();
+        int size = wayIds.length;
+        if (names.length != size || highwayClasses.length != size || maxspeeds.length != size) {
+            throw new IOException("Corrupt snapshot: way table columns differ in length.");
+        }
+        return new WayTable(wayIds, names, highwayClasses, maxspeeds, size,
+                new Dictionary(nameValues), new Dictionary(highwayValues));
+    }
+
+    /**
+     * Distinct strings numbered in order of first appearance.
+     */
+    private static class Dictionary {
+        /** Estimated bytes per string besides its characters: the object and its array. */
+        private static final int STRING_OVERHEAD_BYTES = 40;
+
+        private String[] values;
+        private int size;
+        /** The index of each string; only kept while strings are being added. */
+        private HashMap<String, Integer> index;
+
+        Dictionary() {
+            values = new String[16];
+            size = 0;
+            index = new HashMap<>();
+        }
+
+        Dictionary(String[] values) {
+            this.values = values;
+            this.size = values.length;
+            this.index = null;
+        }
+
+        /**
+         * Returns the index of <code>value</code>, adding it if it is new, or <code>NONE</code>
+         * for <code>null</code>.
+         *
+         * @throws IllegalStateException If the dictionary has been trimmed or read from a
+         *                               snapshot, which drops the index interning needs.
+         */
+        int intern(String value) {
+            if (value == null) {
+                return NONE;
+            }
+            if (index == null) {
+                throw new IllegalStateException("Cannot intern into a read-only dictionary.");
+            }
+            Integer i = index.get(value);
+            if (i != null) {
+                return i;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value;
+            index.put(value, size);
+            size += 1;
+            return size - 1;
+        }
+
+        String get(int i) {
+            return values[i];
+        }
+
+        String[] values() {
+            return Arrays.copyOf(values, size);
+        }
+
+        void trim() {
+            values = Arrays.copyOf(values, size);
+            index = null;
+        }
+
+        long bytes() {
+            long bytes = (long) Integer.BYTES * values.length;
+            for (int i = 0; i < size; i += 1) {
+                bytes += STRING_OVERHEAD_BYTES + values[i].length();
+            }
+            return bytes;
+        }
+    }
+}